@@ -0,0 +1,164 @@
+package k0k0ska.speedhud;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.chat.TextComponent;
+
+/**
+ * Сборка строки HUD и сообщений: прежний путь через getMessage против кэша
+ * {@link HudFormatCache} и {@link MessageTemplates}, а также сравнение форматирования чисел.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HudFormatBenchmark {
+
+    @Param({"10", "500", "5000"})
+    public int players;
+
+    private YamlConfiguration messages;
+    private MessageTemplates templates;
+    private HudFormatCache cache;
+    private double[] speeds;
+
+    private final DecimalFormat decimalFormat = new DecimalFormat("0.00");
+    private final StringBuffer buffer = new StringBuffer();
+    private final StringBuilder builder = new StringBuilder();
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+
+    @Setup
+    public void setup() {
+        messages = YamlConfiguration.loadConfiguration(new InputStreamReader(
+                HudFormatBenchmark.class.getClassLoader().getResourceAsStream("lang/messages_en.yml"), StandardCharsets.UTF_8));
+        templates = MessageTemplates.compile(messages, null);
+        Map<String, String> unitNames = new HashMap<>();
+        unitNames.put("kmh", templates.text("unit_kmh"));
+        cache = new HudFormatCache(templates.render(MessageKey.HUD_DISPLAY), unitNames);
+
+        speeds = new double[players];
+        for (int i = 0; i < players; i++) {
+            speeds[i] = (i * 7919 % 4000) / 100.0;
+        }
+    }
+
+    @Benchmark
+    public void legacyGetMessageHud(Blackhole blackhole) {
+        for (double speed : speeds) {
+            String unitDisplayName = legacyRender(messages, "unit_kmh", null);
+            String message = legacyRender(messages, "hud_display", null)
+                    + ChatColor.YELLOW + decimalFormat.format(speed) + " " + unitDisplayName;
+            blackhole.consume(new TextComponent(message));
+        }
+    }
+
+    @Benchmark
+    public void cachedHud(Blackhole blackhole) {
+        for (double speed : speeds) {
+            buffer.setLength(0);
+            buffer.append(cache.prefix(HudFormatCache.BAND_YELLOW));
+            decimalFormat.format(speed, buffer, fieldPosition);
+            buffer.append(cache.unitSuffix("kmh"));
+            blackhole.consume(buffer.length());
+        }
+    }
+
+    @Benchmark
+    public void placeholderMessage(Blackhole blackhole) {
+        Map<String, String> placeholders = new HashMap<>();
+        for (int i = 0; i < speeds.length; i++) {
+            placeholders.put("rank", String.valueOf(i + 1));
+            placeholders.put("player", "player" + i);
+            placeholders.put("speed", String.format("%.2f", speeds[i]));
+            placeholders.put("unit", "km/h");
+            blackhole.consume(legacyRender(messages, "topspeed_entry", placeholders));
+        }
+    }
+
+    @Benchmark
+    public void templateMessage(Blackhole blackhole) {
+        for (int i = 0; i < speeds.length; i++) {
+            blackhole.consume(templates.render(MessageKey.TOPSPEED_ENTRY, String.valueOf(i + 1), "player" + i,
+                    String.format("%.2f", speeds[i]), "km/h"));
+        }
+    }
+
+    @Benchmark
+    public void formatDecimalFormat(Blackhole blackhole) {
+        for (double speed : speeds) {
+            buffer.setLength(0);
+            decimalFormat.format(speed, buffer, fieldPosition);
+            blackhole.consume(buffer.length());
+        }
+    }
+
+    @Benchmark
+    public void formatStringFormat(Blackhole blackhole) {
+        for (double speed : speeds) {
+            blackhole.consume(String.format("%.2f", speed));
+        }
+    }
+
+    @Benchmark
+    public void formatFixedPoint(Blackhole blackhole) {
+        for (double speed : speeds) {
+            builder.setLength(0);
+            appendFixed2(builder, speed);
+            blackhole.consume(builder.length());
+        }
+    }
+
+    // Прежний getMessage: поиск в конфиге, замена каждой подстановки и перевод цветов на каждый вызов.
+    private static String legacyRender(YamlConfiguration messagesConfig, String path, Map<String, String> placeholders) {
+        String message = messagesConfig.getString("messages." + path, path);
+        String prefix = messagesConfig.getString("command_prefix", "SpeedHUD");
+        if (message == null) {
+            message = path;
+        }
+        message = message.replace("%prefix%", prefix);
+        if (placeholders != null) {
+            for (Map.Entry<String, String> entry : placeholders.entrySet()) {
+                message = message.replace("%" + entry.getKey() + "%", entry.getValue());
+            }
+        }
+        return ChatColor.translateAlternateColorCodes('&', message);
+    }
+
+    // Кандидат на замену DecimalFormat: округление до сотых через long без промежуточных строк.
+    private static void appendFixed2(StringBuilder out, double value) {
+        long hundredths = Math.round(value * 100.0);
+        if (hundredths < 0) {
+            out.append('-');
+            hundredths = -hundredths;
+        }
+        out.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if (fraction < 10) {
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+}
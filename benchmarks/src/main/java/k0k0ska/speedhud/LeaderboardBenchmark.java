@@ -0,0 +1,94 @@
+package k0k0ska.speedhud;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Топ скоростей на 100 тысячах записей: прежняя полная сортировка на каждый запрос
+ * против инкрементального {@link LeaderboardIndex}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeaderboardBenchmark {
+
+    private static final class LegacyEntry {
+        final String playerName;
+        final double speedMs;
+
+        LegacyEntry(String playerName, double speedMs) {
+            this.playerName = playerName;
+            this.speedMs = speedMs;
+        }
+    }
+
+    @Param({"100000"})
+    public int entries;
+
+    private String[] names;
+    private double[] speeds;
+    private LeaderboardIndex index;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        random = new Random(7L);
+        names = new String[entries];
+        speeds = new double[entries];
+        index = new LeaderboardIndex();
+        for (int i = 0; i < entries; i++) {
+            names[i] = "player" + i;
+            speeds[i] = random.nextDouble() * 40.0;
+            index.put(names[i], speeds[i], "kmh");
+        }
+    }
+
+    @Benchmark
+    public List<LegacyEntry> legacyBuildAndSort() {
+        List<LegacyEntry> all = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            all.add(new LegacyEntry(names[i], speeds[i]));
+        }
+        all.sort(Comparator.comparingDouble((LegacyEntry e) -> e.speedMs).reversed());
+        return all;
+    }
+
+    @Benchmark
+    public LeaderboardIndex indexBuild() {
+        LeaderboardIndex built = new LeaderboardIndex();
+        for (int i = 0; i < entries; i++) {
+            built.put(names[i], speeds[i], "kmh");
+        }
+        return built;
+    }
+
+    @Benchmark
+    public int indexUpdateAndRank() {
+        int i = random.nextInt(entries);
+        index.put(names[i], random.nextDouble() * 40.0, "kmh");
+        return index.rankOf(names[i]);
+    }
+
+    @Benchmark
+    public List<LeaderboardIndex.Entry> indexDeepPage() {
+        return index.page(entries / 2, 10);
+    }
+}
@@ -0,0 +1,398 @@
+package k0k0ska.speedhud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Симуляция нагрузки без сервера Minecraft: синтетические игроки двигаются по сценариям
+ * (ходьба, бег, элитры, телепорты, стоящие на месте), а тиковую работу плагина выполняет
+ * тот же {@link SpeedTickTask}, что и на сервере, вместе с настоящими рабочим потоком,
+ * движком записи, файловым хранилищем рекордов и шаблонами сообщений. Планировщик Bukkit
+ * заменён очередью задач, которая разбирается в начале каждого тика.
+ * Команды topspeed, myrank и help выполняются теми же вызовами хранилища и шаблонов,
+ * что и обработчики команд плагина.
+ * <p>
+ * Печатает время CPU основного потока на тик, выделение памяти основным и рабочим потоками
+ * и число отправленных пакетов HUD. Запуск:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar k0k0ska.speedhud.LoadSimulation --players 500 --recorders 50
+ * </pre>
+ */
+public final class LoadSimulation {
+
+    private static final int TICK_NANOS = 50_000_000;
+    private static final int SAMPLE_INTERVAL_TICKS = 4;
+    private static final int RECORDING_INTERVAL_TICKS = 1;
+    private static final int RECORDING_TICKS = 200;
+    private static final int RECORDING_PAUSE_TICKS = 20;
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * Замена планировщика Bukkit: задачи из любого потока выполняются в начале следующего тика,
+     * отложенные задачи ставит только основной поток.
+     */
+    private static final class SimulatedScheduler {
+        private static final class Delayed {
+            final long tick;
+            final Runnable task;
+
+            Delayed(long tick, Runnable task) {
+                this.tick = tick;
+                this.task = task;
+            }
+        }
+
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Delayed> delayed = new PriorityQueue<>((a, b) -> Long.compare(a.tick, b.tick));
+        private long tick;
+
+        void runTask(Runnable task) {
+            pending.offer(task);
+        }
+
+        void runTaskLater(Runnable task, long delayTicks) {
+            delayed.add(new Delayed(tick + delayTicks, task));
+        }
+
+        void runDue(long tick) {
+            this.tick = tick;
+            Runnable task;
+            while ((task = pending.poll()) != null) {
+                task.run();
+            }
+            while (!delayed.isEmpty() && delayed.peek().tick <= tick) {
+                delayed.poll().task.run();
+            }
+        }
+    }
+
+    private final int playerCount;
+    private final int recorderCount;
+    private final int commandsPerSecond;
+    private final Random random;
+
+    private final Logger logger = Logger.getLogger("SpeedHUD-Simulation");
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final SpeedWorker worker = new SpeedWorker(metrics, new SpeedApiService(logger));
+    private final HudRateController hudRate = new HudRateController();
+    private final SamplingScheduler<PlayerSession> samplingScheduler = new SamplingScheduler<>(SAMPLE_INTERVAL_TICKS);
+    private final Set<PlayerSession> recorders = new LinkedHashSet<>();
+    private final SessionStore sessions = new SessionStore(0);
+    private final SimulatedScheduler scheduler = new SimulatedScheduler();
+    private final SpeedUnit unit = new SpeedUnit("kmh", 3.6, "unit_kmh", 10.0, 20.0);
+    private final List<SimulatedPlayer> players = new ArrayList<>();
+    private final File dataFolder;
+    private final TopSpeedStore store;
+    private final MessageTemplates messages;
+    private final String[] helpArgs = {
+            "speedhud", "on", "off", "unit", "reload", "help", "startrecordspeed", "topspeed",
+            "toptoggleunit", "myrank", "stats", "export", "import", "history", String.valueOf(RECORDING_TICKS / SpeedSampleState.TICKS_PER_SECOND)
+    };
+    private final SpeedTickTask task;
+
+    private int commandCursor;
+    private long renderedChars;
+    private long recordingsFinished;
+
+    private LoadSimulation(int playerCount, int recorderCount, int commandsPerSecond, long seed) throws IOException {
+        this.playerCount = playerCount;
+        this.recorderCount = recorderCount;
+        this.commandsPerSecond = commandsPerSecond;
+        this.random = new Random(seed);
+        this.dataFolder = Files.createTempDirectory("speedhud-sim").toFile();
+        this.store = new TopSpeedStore(dataFolder, logger, "Не удалось сохранить рекорды.", metrics);
+        this.messages = MessageTemplates.compile(YamlConfiguration.loadConfiguration(new InputStreamReader(
+                LoadSimulation.class.getClassLoader().getResourceAsStream("lang/messages_en.yml"), StandardCharsets.UTF_8)), logger);
+        this.task = new SpeedTickTask(new SpeedTickTask.Host() {
+            @Override
+            public SamplingPolicy policyFor(World world) {
+                return SamplingPolicy.DEFAULT;
+            }
+
+            @Override
+            public SpeedUnit hudUnitOf(PlayerSession session) {
+                return session.hudEnabled ? unit : null;
+            }
+
+            @Override
+            public PlayerSession session(UUID playerId) {
+                return sessions.get(playerId);
+            }
+
+            @Override
+            public void finishRecording(PlayerSession session) {
+                LoadSimulation.this.finishRecording(session);
+            }
+        }, samplingScheduler, recorders, worker, metrics, hudRate, logger);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                continue;
+            }
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(args[i].substring(2), flag ? "true" : args[++i]);
+        }
+        int players = Integer.parseInt(options.getOrDefault("players", "500"));
+        int recorders = Integer.parseInt(options.getOrDefault("recorders", "50"));
+        int ticks = Integer.parseInt(options.getOrDefault("ticks", "1200"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "200"));
+        int commands = Integer.parseInt(options.getOrDefault("commands", "5"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        boolean fast = options.containsKey("fast");
+
+        LoadSimulation simulation = new LoadSimulation(players, Math.min(recorders, players), commands, seed);
+        try {
+            simulation.run(warmup, ticks, fast);
+        } finally {
+            simulation.close();
+        }
+    }
+
+    private void run(int warmupTicks, int measuredTicks, boolean fast) {
+        setUp();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long mainThreadId = Thread.currentThread().getId();
+        LatencyHistogram tickCpu = new LatencyHistogram();
+        long mainAllocated = 0L;
+        long workerCpuStart = 0L;
+        long workerAllocatedStart = 0L;
+        long workerThreadId = -1L;
+        long wallStart = 0L;
+        long nextTick = System.nanoTime();
+
+        for (int i = 0; i < warmupTicks + measuredTicks; i++) {
+            if (i == warmupTicks) {
+                metrics.reset();
+                workerThreadId = findThread("SpeedHUD-Sampler");
+                workerCpuStart = workerThreadId < 0 ? 0L : threads.getThreadCpuTime(workerThreadId);
+                workerAllocatedStart = workerThreadId < 0 ? 0L : threads.getThreadAllocatedBytes(workerThreadId);
+                wallStart = System.nanoTime();
+            }
+            if (!fast) {
+                LockSupport.parkNanos(nextTick - System.nanoTime());
+                nextTick += TICK_NANOS;
+            }
+
+            long tick = task.currentTick() + 1;
+            moveServerSide(tick);
+
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long allocatedStart = threads.getThreadAllocatedBytes(mainThreadId);
+            scheduler.runDue(tick);
+            task.run();
+            if (tick % SpeedSampleState.TICKS_PER_SECOND == 0) {
+                runCommands();
+            }
+            if (i >= warmupTicks) {
+                tickCpu.record(threads.getCurrentThreadCpuTime() - cpuStart);
+                mainAllocated += threads.getThreadAllocatedBytes(mainThreadId) - allocatedStart;
+            }
+        }
+
+        double seconds = (System.nanoTime() - wallStart) / 1e9;
+        long workerCpu = workerThreadId < 0 ? 0L : threads.getThreadCpuTime(workerThreadId) - workerCpuStart;
+        long workerAllocated = workerThreadId < 0 ? 0L : threads.getThreadAllocatedBytes(workerThreadId) - workerAllocatedStart;
+        report(measuredTicks, seconds, fast, tickCpu, mainAllocated, workerCpu, workerAllocated);
+    }
+
+    private void setUp() {
+        store.load(0L);
+        worker.configure(SpeedSampleState.historySize(20, SAMPLE_INTERVAL_TICKS),
+                SpeedSampleState.historySize(20, RECORDING_INTERVAL_TICKS), true);
+        Map<String, String> unitNames = new HashMap<>();
+        unitNames.put(unit.id, messages.text(unit.displayNameKey));
+        worker.setHudFormat(new HudFormatCache(messages.render(MessageKey.HUD_DISPLAY), unitNames));
+        worker.configureHud(true, 1.0, 20);
+        hudRate.configure(true, 2.0, 2);
+        task.configure(SAMPLE_INTERVAL_TICKS, RECORDING_INTERVAL_TICKS);
+
+        World world = SimulatedPlayer.world(new UUID(random.nextLong(), random.nextLong()), "world");
+        SimulatedPlayer.Script[] scripts = SimulatedPlayer.Script.values();
+        // Доли сценариев: ходьба, бег, элитры, телепорты и стоящие на месте.
+        int[] weights = {25, 35, 15, 10, 15};
+        int recordersLeft = recorderCount;
+        for (int i = 0; i < playerCount; i++) {
+            SimulatedPlayer.Script script = pick(scripts, weights);
+            SimulatedPlayer player = new SimulatedPlayer(i, script, world, random);
+            players.add(player);
+            PlayerSession session = sessions.open(player.player);
+            session.hudEnabled = true;
+            samplingScheduler.add(session);
+            if (recordersLeft > 0 && player.isMoving()) {
+                recordersLeft--;
+                startRecording(session);
+            }
+        }
+    }
+
+    private SimulatedPlayer.Script pick(SimulatedPlayer.Script[] scripts, int[] weights) {
+        int roll = random.nextInt(100);
+        for (int i = 0; i < weights.length; i++) {
+            roll -= weights[i];
+            if (roll < 0) {
+                return scripts[i];
+            }
+        }
+        return scripts[scripts.length - 1];
+    }
+
+    /**
+     * Движение игроков и события, которые на сервере вызвал бы сам Bukkit (PlayerMoveEvent, PlayerTeleportEvent).
+     * В замер тика не входит.
+     */
+    private void moveServerSide(long tick) {
+        for (SimulatedPlayer player : players) {
+            boolean teleported = player.step(tick);
+            PlayerSession session = sessions.get(player.id);
+            if (teleported) {
+                worker.forgetPosition(player.id);
+            }
+            if (session.idle && player.isMoving()) {
+                session.idle = false;
+                samplingScheduler.add(session);
+            }
+        }
+    }
+
+    private void startRecording(PlayerSession session) {
+        session.recording = true;
+        session.recordingEndTick = task.currentTick() + RECORDING_TICKS;
+        recorders.add(session);
+        worker.startRecording(session.playerId);
+    }
+
+    private void finishRecording(PlayerSession session) {
+        session.recording = false;
+        String name = session.player.getName();
+        worker.stopRecording(session.playerId).thenAccept(run -> scheduler.runTask(() -> {
+            if (run != null) {
+                store.submitRun(session.playerId, name, run, unit.id).thenAccept(result -> {
+                    recordingsFinished++;
+                    renderedChars += messages.render(MessageKey.START_RECORD_FINISHED,
+                            String.format("%.2f", run.peakSpeedMs * unit.multiplier),
+                            String.format("%.2f", run.averageSpeedMs * unit.multiplier),
+                            String.format("%.1f", run.durationTicks / (double) SpeedSampleState.TICKS_PER_SECOND),
+                            messages.text(unit.displayNameKey)).length();
+                });
+            }
+            scheduler.runTaskLater(() -> startRecording(session), RECORDING_PAUSE_TICKS);
+        }));
+    }
+
+    /**
+     * Команды по очереди: страница топа, место игрока и справка.
+     */
+    private void runCommands() {
+        for (int i = 0; i < commandsPerSecond; i++) {
+            long start = System.nanoTime();
+            SimulatedPlayer player = players.get(random.nextInt(players.size()));
+            switch (commandCursor++ % 3) {
+                case 0:
+                    int page = random.nextInt(5);
+                    store.page(page * PAGE_SIZE, PAGE_SIZE).thenAccept(result -> {
+                        int pages = Math.max(1, (result.total + PAGE_SIZE - 1) / PAGE_SIZE);
+                        renderedChars += messages.render(MessageKey.TOPSPEED_HEADER, String.valueOf(page + 1), String.valueOf(pages)).length();
+                        int rank = page * PAGE_SIZE + 1;
+                        for (LeaderboardIndex.Entry entry : result.entries) {
+                            renderedChars += messages.render(MessageKey.TOPSPEED_ENTRY, String.valueOf(rank++), entry.playerName,
+                                    String.format("%.2f", entry.speedMs * unit.multiplier), messages.text(unit.displayNameKey)).length();
+                        }
+                    });
+                    metrics.record(PluginMetrics.PHASE_COMMAND_PREFIX + "topspeed", start);
+                    break;
+                case 1:
+                    store.rank(player.name).thenAccept(result -> {
+                        if (result.rank < 0) {
+                            renderedChars += messages.render(MessageKey.MYRANK_NO_DATA).length();
+                            return;
+                        }
+                        renderedChars += messages.render(MessageKey.MYRANK_ENTRY, String.valueOf(result.rank), String.valueOf(result.total),
+                                String.format("%.2f", result.entry.speedMs * unit.multiplier), messages.text(unit.displayNameKey)).length();
+                    });
+                    metrics.record(PluginMetrics.PHASE_COMMAND_PREFIX + "myrank", start);
+                    break;
+                default:
+                    for (MessageKey line : new MessageKey[] {
+                            MessageKey.HELP_HEADER, MessageKey.HELP_ENABLE, MessageKey.HELP_DISABLE, MessageKey.HELP_UNIT,
+                            MessageKey.HELP_RELOAD, MessageKey.HELP_HELP, MessageKey.HELP_STARTRECORDSPEED,
+                            MessageKey.HELP_TOPSPEED, MessageKey.HELP_TOPTOGGLEUNIT, MessageKey.HELP_MYRANK,
+                            MessageKey.HELP_STATS, MessageKey.HELP_EXPORT, MessageKey.HELP_IMPORT, MessageKey.HELP_HISTORY}) {
+                        renderedChars += messages.render(line, helpArgs).length();
+                    }
+                    metrics.record(PluginMetrics.PHASE_COMMAND_PREFIX + "help", start);
+                    break;
+            }
+        }
+    }
+
+    private void report(int ticks, double seconds, boolean fast, LatencyHistogram tickCpu, long mainAllocated,
+                        long workerCpu, long workerAllocated) {
+        long packets = metrics.packetsSent.sum();
+        System.out.printf("SpeedHUD load simulation: %d players with HUD, %d recording, %d ticks%s, %.1f s%n",
+                playerCount, recorderCount, ticks, fast ? " back to back" : " at 20 TPS", seconds);
+        System.out.printf("main thread CPU per tick: mean %s, p50 %s, p99 %s, max %s us%n",
+                micros(tickCpu.mean()), micros(tickCpu.percentile(50.0)), micros(tickCpu.percentile(99.0)), micros(tickCpu.max()));
+        System.out.printf("main thread allocation: %.1f KB/tick, %.2f MB/s%n",
+                mainAllocated / 1024.0 / ticks, mainAllocated / 1048576.0 / seconds);
+        System.out.printf("worker thread: CPU %s us/tick, allocation %.1f KB/tick, %.2f MB/s%n",
+                micros(workerCpu / ticks), workerAllocated / 1024.0 / ticks, workerAllocated / 1048576.0 / seconds);
+        System.out.printf("HUD packets: %d sent (%.1f/s), %d skipped; samples %d; HUD backoff x%d%n",
+                packets, packets / seconds, metrics.sendsSkipped.sum(), metrics.playersSampled.sum(), hudRate.multiplier());
+        System.out.printf("recordings finished: %d, records saved: %d; message chars rendered: %d%n",
+                recordingsFinished, metrics.saves.sum(), renderedChars);
+        for (Map.Entry<String, LatencyHistogram> phase : metrics.phases().entrySet()) {
+            LatencyHistogram histogram = phase.getValue();
+            System.out.printf("  %-20s %8d calls, mean %s, p99 %s, max %s us%n", phase.getKey(), histogram.count(),
+                    micros(histogram.mean()), micros(histogram.percentile(99.0)), micros(histogram.max()));
+        }
+    }
+
+    private void close() {
+        worker.shutdown();
+        store.close();
+        File[] files = dataFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataFolder.delete();
+    }
+
+    private static long findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread.getId();
+            }
+        }
+        return -1L;
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+}
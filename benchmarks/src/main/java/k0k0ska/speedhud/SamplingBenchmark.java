@@ -0,0 +1,133 @@
+package k0k0ska.speedhud;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Один проход замеров по всем игрокам: прежний конвейер Location/ArrayList/DoubleStream
+ * против примитивного {@link SpeedSampleState} и полного пути снимок + рабочий поток.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+
+    private static final int INTERVAL_TICKS = 4;
+    private static final int MAX_HISTORY = 5;
+
+    @Param({"10", "500", "5000"})
+    public int players;
+
+    private StubPlayer[] stubs;
+    private SpeedSampleState[] states;
+    private long tick;
+
+    private final Map<UUID, double[]> legacyLastLocations = new HashMap<>();
+    private final Map<UUID, List<Double>> legacyRecentSpeeds = new HashMap<>();
+
+    private SpeedWorker worker;
+    private SampleBatch batch;
+    private SpeedUnit unit;
+
+    @Setup
+    public void setup() {
+        stubs = StubPlayer.create(players, 42L);
+        states = new SpeedSampleState[players];
+        for (int i = 0; i < players; i++) {
+            states[i] = new SpeedSampleState(MAX_HISTORY);
+        }
+
+        unit = new SpeedUnit("kmh", 3.6, "unit_kmh", 10.0, 20.0);
+        Map<String, String> unitNames = new HashMap<>();
+        unitNames.put("kmh", "km/h");
+        worker = new SpeedWorker(new PluginMetrics(), new SpeedApiService(Logger.getAnonymousLogger()));
+        worker.configure(MAX_HISTORY, MAX_HISTORY, true);
+        worker.setHudFormat(new HudFormatCache("Speed: ", unitNames));
+        // Дожидаемся применения настроек и дальше вызываем process() в потоке бенчмарка.
+        worker.shutdown();
+        batch = new SampleBatch();
+    }
+
+    @TearDown
+    public void tearDown() {
+        legacyLastLocations.clear();
+        legacyRecentSpeeds.clear();
+    }
+
+    @Benchmark
+    public double legacyLocationPipeline() {
+        double total = 0.0;
+        for (StubPlayer player : stubs) {
+            player.step(INTERVAL_TICKS);
+            double[] current = {player.x, player.y, player.z};
+            double[] last = legacyLastLocations.get(player.id);
+
+            double speed = 0.0;
+            if (last != null) {
+                double dx = current[0] - last[0];
+                double dy = current[1] - last[1];
+                double dz = current[2] - last[2];
+                speed = Math.sqrt(dx * dx + dy * dy + dz * dz) * 5;
+            }
+
+            List<Double> history = legacyRecentSpeeds.computeIfAbsent(player.id, k -> new ArrayList<>());
+            history.add(speed);
+            if (history.size() > MAX_HISTORY) history.remove(0);
+
+            total += history.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+            legacyLastLocations.put(player.id, current.clone());
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double primitiveSampler() {
+        tick += INTERVAL_TICKS;
+        double total = 0.0;
+        for (int i = 0; i < stubs.length; i++) {
+            StubPlayer player = stubs[i];
+            player.step(INTERVAL_TICKS);
+            total += states[i].sample(player.worldId, player.x, player.y, player.z, tick);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public void snapshotAndWorkerPipeline() {
+        tick += INTERVAL_TICKS;
+        batch.reset(tick);
+        for (StubPlayer player : stubs) {
+            player.step(INTERVAL_TICKS);
+            batch.add(player.id, SampleBatch.KIND_HUD, player.worldId, player.x, player.y, player.z, unit,
+                    SamplingPolicy.DEFAULT, Double.NaN);
+        }
+        worker.process(batch);
+        while (worker.pollPacket() != null) {
+            // Пакеты отправил бы основной поток.
+        }
+        while (worker.pollIdle() != null) {
+            // Стоящих игроков убрал бы основной поток.
+        }
+    }
+}
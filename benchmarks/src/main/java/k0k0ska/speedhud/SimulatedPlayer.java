@@ -0,0 +1,195 @@
+package k0k0ska.speedhud;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import net.md_5.bungee.api.ChatMessageType;
+import net.md_5.bungee.api.chat.BaseComponent;
+
+/**
+ * Синтетический игрок для {@link LoadSimulation}: двигается по сценарию и отдаёт себя
+ * как Bukkit {@link Player} через динамический прокси. Прокси отвечает только на то,
+ * что читает плагин (UUID, имя, позиция, скорость, элитры, action bar); остальные
+ * методы возвращают null/0/false.
+ */
+final class SimulatedPlayer {
+
+    enum Script {
+        // Стоит на месте: проверяет исключение стоящих из замеров.
+        IDLE(0.0),
+        WALK(4.317 / 20.0),
+        SPRINT(5.612 / 20.0),
+        // Полёт на элитрах: скорость берётся из вектора скорости.
+        ELYTRA(30.0 / 20.0),
+        // Бежит и раз в TELEPORT_EVERY_TICKS тиков переносится далеко в сторону.
+        TELEPORT(5.612 / 20.0);
+
+        final double blocksPerTick;
+
+        Script(double blocksPerTick) {
+            this.blocksPerTick = blocksPerTick;
+        }
+    }
+
+    static final int TELEPORT_EVERY_TICKS = 200;
+
+    final UUID id;
+    final String name;
+    final Script script;
+    final Player player;
+
+    private final World world;
+    private final Random random;
+    private double x;
+    private double y;
+    private double z;
+    private double heading;
+    private double vx;
+    private double vy;
+    private double vz;
+    private long packets;
+
+    SimulatedPlayer(int index, Script script, World world, Random random) {
+        this.id = new UUID(random.nextLong(), random.nextLong());
+        this.name = "sim" + index;
+        this.script = script;
+        this.world = world;
+        this.random = random;
+        this.x = random.nextDouble() * 2000.0;
+        this.y = script == Script.ELYTRA ? 200.0 : 64.0;
+        this.z = random.nextDouble() * 2000.0;
+        this.heading = random.nextDouble() * Math.PI * 2.0;
+        Player.Spigot spigot = new Player.Spigot() {
+            @Override
+            public void sendMessage(ChatMessageType position, BaseComponent component) {
+                packets++;
+            }
+        };
+        this.player = (Player) Proxy.newProxyInstance(SimulatedPlayer.class.getClassLoader(), new Class<?>[] {Player.class},
+                (proxy, method, args) -> answer(proxy, method, args, spigot));
+    }
+
+    /**
+     * Сдвигает игрока на один тик. Возвращает true, если в этот тик был телепорт.
+     */
+    boolean step(long tick) {
+        if (script == Script.IDLE) {
+            vx = 0.0;
+            vy = 0.0;
+            vz = 0.0;
+            return false;
+        }
+        if (script == Script.TELEPORT && tick % TELEPORT_EVERY_TICKS == 0) {
+            x += 2000.0;
+            return true;
+        }
+        // Плавные повороты и небольшие колебания скорости, чтобы значение на HUD менялось.
+        heading += (random.nextDouble() - 0.5) * 0.2;
+        double speed = script.blocksPerTick * (0.9 + random.nextDouble() * 0.2);
+        vx = Math.cos(heading) * speed;
+        vz = Math.sin(heading) * speed;
+        vy = script == Script.ELYTRA ? -0.05 : 0.0;
+        x += vx;
+        y += vy;
+        z += vz;
+        return false;
+    }
+
+    boolean isMoving() {
+        return script != Script.IDLE;
+    }
+
+    long packets() {
+        return packets;
+    }
+
+    private Object answer(Object proxy, Method method, Object[] args, Player.Spigot spigot) {
+        switch (method.getName()) {
+            case "getUniqueId":
+                return id;
+            case "getName":
+            case "toString":
+                return name;
+            case "getWorld":
+                return world;
+            case "getLocation":
+                if (args != null && args.length == 1 && args[0] instanceof Location) {
+                    Location location = (Location) args[0];
+                    location.setWorld(world);
+                    location.setX(x);
+                    location.setY(y);
+                    location.setZ(z);
+                    return location;
+                }
+                return new Location(world, x, y, z);
+            case "getVelocity":
+                return new Vector(vx, vy, vz);
+            case "isGliding":
+                return script == Script.ELYTRA;
+            case "isOnline":
+                return true;
+            case "spigot":
+                return spigot;
+            case "hashCode":
+                return id.hashCode();
+            case "equals":
+                return proxy == args[0];
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    static World world(UUID worldId, String name) {
+        return (World) Proxy.newProxyInstance(SimulatedPlayer.class.getClassLoader(), new Class<?>[] {World.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUID":
+                            return worldId;
+                        case "getName":
+                        case "toString":
+                            return name;
+                        case "hashCode":
+                            return worldId.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0.0f;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
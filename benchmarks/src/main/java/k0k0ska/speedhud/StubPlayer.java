@@ -0,0 +1,49 @@
+package k0k0ska.speedhud;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Лёгкая замена Bukkit Player/Location для бенчмарков: только идентификатор,
+ * мир и координаты, которые двигаются по прямой с постоянной скоростью.
+ */
+final class StubPlayer {
+
+    final UUID id;
+    final String name;
+    UUID worldId;
+    double x;
+    double y;
+    double z;
+    private final double vx;
+    private final double vz;
+
+    StubPlayer(int index, UUID worldId, Random random) {
+        this.id = new UUID(random.nextLong(), random.nextLong());
+        this.name = "player" + index;
+        this.worldId = worldId;
+        this.x = random.nextDouble() * 1000.0;
+        this.y = 64.0;
+        this.z = random.nextDouble() * 1000.0;
+        // От стоящих на месте до бегущих игроков, в блоках за тик.
+        double speed = random.nextInt(4) == 0 ? 0.0 : random.nextDouble() * 0.5;
+        double angle = random.nextDouble() * Math.PI * 2.0;
+        this.vx = Math.cos(angle) * speed;
+        this.vz = Math.sin(angle) * speed;
+    }
+
+    void step(int ticks) {
+        x += vx * ticks;
+        z += vz * ticks;
+    }
+
+    static StubPlayer[] create(int count, long seed) {
+        Random random = new Random(seed);
+        UUID worldId = new UUID(random.nextLong(), random.nextLong());
+        StubPlayer[] players = new StubPlayer[count];
+        for (int i = 0; i < count; i++) {
+            players[i] = new StubPlayer(i, worldId, random);
+        }
+        return players;
+    }
+}
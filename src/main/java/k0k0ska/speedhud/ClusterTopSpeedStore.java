@@ -0,0 +1,525 @@
+package k0k0ska.speedhud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Общий рейтинг нескольких серверов. Оборачивает локальное хранилище: рекорды по-прежнему
+ * сохраняются локально, а каждый новый личный рекорд дописывается в файл &lt;узел&gt;.delta
+ * в общей папке. Фоновое слияние читает из файлов всех узлов только байты,
+ * появившиеся с прошлого раза, и сразу вносит улучшения в рейтинг.
+ * Запросы рейтинга отвечают из этого рейтинга сразу.
+ * Прочитанные смещения и изменения рейтинга дописываются в локальный файл состояния,
+ * так что после перезапуска файлы узлов читаются с того же места, а не с начала.
+ */
+final class ClusterTopSpeedStore implements TopSpeedStorage {
+
+    private static final int DELTA_MAGIC = 0x53484431;
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final int SEED_PAGE_SIZE = 500;
+    private static final int STATE_MAGIC = 0x53484353;
+    private static final int STATE_VERSION = 1;
+    // Записи файла состояния: смещение в файле узла или запись рейтинга.
+    private static final byte STATE_OFFSET = 0;
+    private static final byte STATE_ENTRY = 1;
+    // Файл состояния переписывается целиком, когда записей в нём вдвое больше, чем нужно для текущего рейтинга.
+    private static final int STATE_REWRITE_SLACK = 1024;
+
+    private static final class Delta {
+        final String playerName;
+        final double speedMs;
+        final String unitId;
+
+        Delta(String playerName, double speedMs, String unitId) {
+            this.playerName = playerName;
+            this.speedMs = speedMs;
+            this.unitId = unitId;
+        }
+    }
+
+    private final TopSpeedStorage local;
+    private final File sharedDirectory;
+    private final File deltaFile;
+    private final File stateFile;
+    private final long mergeIntervalSeconds;
+    private final Executor mainThread;
+    private final Logger logger;
+    private final PluginMetrics metrics;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SpeedHUD-Cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Единственная копия общего рейтинга. Защищена монитором leaderboard: пишет поток кластера
+    // и основной поток (свои рекорды), читает основной поток.
+    private final LeaderboardIndex leaderboard = new LeaderboardIndex();
+    private final PrefixIndex names = new PrefixIndex();
+
+    // Поля ниже используются только потоком кластера.
+    private final Map<String, Long> offsets = new HashMap<>();
+    private final Set<String> badFiles = new HashSet<>();
+    private OutputStream deltaOut;
+    private DataOutputStream stateOut;
+    private int stateRecords;
+    // Хвост файла состояния не прочитан: перед следующей записью файл переписывается целиком.
+    private boolean stateRewriteNeeded;
+
+    /**
+     * @param stateFile локальный файл состояния слияния этого узла (не в общей папке)
+     */
+    ClusterTopSpeedStore(TopSpeedStorage local, File sharedDirectory, String nodeId, File stateFile, long mergeIntervalSeconds,
+                         Executor mainThread, Logger logger, PluginMetrics metrics) {
+        this.local = local;
+        this.sharedDirectory = sharedDirectory;
+        this.deltaFile = new File(sharedDirectory, nodeId + DELTA_SUFFIX);
+        this.stateFile = stateFile;
+        this.mergeIntervalSeconds = Math.max(1L, mergeIntervalSeconds);
+        this.mainThread = mainThread;
+        this.logger = logger;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Загружает локальное хранилище и сохранённое состояние слияния и запускает слияние.
+     * Если файла этого узла ещё нет, сначала выгружает в него все локальные рекорды.
+     */
+    @Override
+    public void load(long compactIntervalSeconds) {
+        local.load(compactIntervalSeconds);
+        if (!sharedDirectory.isDirectory() && !sharedDirectory.mkdirs()) {
+            logger.severe("Общая папка рейтинга недоступна: " + sharedDirectory.getAbsolutePath());
+        }
+        if (!deltaFile.exists()) {
+            seed(0);
+        }
+        worker.execute(this::loadState);
+        worker.scheduleWithFixedDelay(this::merge, 0L, mergeIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Сохраняет запись локально. Личный рекорд определяется по общему рейтингу: запись,
+     * уступающая рекорду игрока на другом сервере, сохраняется локально, но рекордом не считается.
+     * Новый рекорд выгружается в файл узла и сразу попадает в рейтинг этого сервера, не дожидаясь слияния.
+     */
+    @Override
+    public CompletableFuture<RunResult> submitRun(UUID playerId, String playerName, RecordingEngine.Run run, String unitId) {
+        LeaderboardIndex.Entry merged;
+        synchronized (leaderboard) {
+            merged = leaderboard.get(playerName);
+        }
+        Delta delta = new Delta(playerName, run.peakSpeedMs, unitId);
+        return local.submitRun(playerId, playerName, run, unitId).thenApply(saved -> {
+            if (merged != null && run.peakSpeedMs <= merged.speedMs) {
+                return new RunResult(false, Math.max(merged.speedMs, saved.bestSpeedMs));
+            }
+            if (saved.personalBest) {
+                export(List.of(delta));
+                improve(delta);
+            }
+            return saved;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Page> page(int offset, int limit) {
+        synchronized (leaderboard) {
+            return CompletableFuture.completedFuture(new Page(leaderboard.size(), leaderboard.page(offset, limit)));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Rank> rank(String playerName) {
+        synchronized (leaderboard) {
+            return CompletableFuture.completedFuture(
+                    new Rank(leaderboard.rankOf(playerName), leaderboard.size(), leaderboard.get(playerName)));
+        }
+    }
+
+    @Override
+    public CompletableFuture<LeaderboardIndex.Entry> personalBest(String playerName) {
+        synchronized (leaderboard) {
+            return CompletableFuture.completedFuture(leaderboard.get(playerName));
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<String>> playerNames(String prefix, int limit) {
+        synchronized (leaderboard) {
+            return CompletableFuture.completedFuture(names.complete(prefix, limit));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> exportYaml(File file) {
+        return local.exportYaml(file);
+    }
+
+    /**
+     * Читает YAML один раз в потоке кластера, загружает рекорды в локальное хранилище и выгружает их
+     * в файл узла, чтобы их увидели все серверы. Общий рейтинг хранит лучший результат игрока,
+     * поэтому там загрузка может только поднять запись.
+     */
+    @Override
+    public CompletableFuture<Integer> importYaml(File file) {
+        return CompletableFuture.supplyAsync(() -> TopSpeedYaml.read(file), worker).thenCompose(this::importRecords);
+    }
+
+    @Override
+    public CompletableFuture<Integer> importRecords(Map<String, TopSpeedStore.Record> records) {
+        return local.importRecords(records).thenApply(count -> {
+            List<Delta> imported = new ArrayList<>(records.size());
+            for (Map.Entry<String, TopSpeedStore.Record> entry : records.entrySet()) {
+                Delta delta = new Delta(entry.getKey(), entry.getValue().speedMs, entry.getValue().unitId);
+                imported.add(delta);
+                improve(delta);
+            }
+            export(imported);
+            return count;
+        });
+    }
+
+    /**
+     * Сначала закрывает локальное хранилище: записи, сохранённые им при закрытии, ещё выгружаются в файл узла.
+     */
+    @Override
+    public void close() {
+        local.close();
+        worker.execute(this::closeDelta);
+        worker.execute(this::closeState);
+        worker.shutdown();
+        try {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Постранично выгружает локальные рекорды в файл узла. Страницы запрашиваются из основного потока.
+     */
+    private void seed(int offset) {
+        local.page(offset, SEED_PAGE_SIZE).whenComplete((page, error) -> {
+            if (error != null) {
+                logger.log(Level.WARNING, "Не удалось выгрузить локальные рекорды в общий рейтинг.", error);
+                return;
+            }
+            List<Delta> deltas = new ArrayList<>(page.entries.size());
+            for (LeaderboardIndex.Entry entry : page.entries) {
+                deltas.add(new Delta(entry.playerName, entry.speedMs, entry.unitId));
+            }
+            export(deltas);
+            if (offset + page.entries.size() < page.total && !page.entries.isEmpty()) {
+                mainThread.execute(() -> seed(offset + page.entries.size()));
+            }
+        });
+    }
+
+    private void export(List<Delta> deltas) {
+        worker.execute(() -> {
+            try {
+                if (deltaOut == null) {
+                    boolean fresh = !deltaFile.exists() || deltaFile.length() == 0;
+                    deltaOut = new FileOutputStream(deltaFile, true);
+                    if (fresh) {
+                        deltaOut.write(new byte[] {(byte) (DELTA_MAGIC >>> 24), (byte) (DELTA_MAGIC >>> 16),
+                                (byte) (DELTA_MAGIC >>> 8), (byte) DELTA_MAGIC});
+                    }
+                }
+                // Записи целиком одним write, чтобы читатели реже видели половину записи.
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * deltas.size());
+                DataOutputStream out = new DataOutputStream(bytes);
+                long now = System.currentTimeMillis();
+                for (Delta delta : deltas) {
+                    out.writeUTF(delta.playerName);
+                    out.writeDouble(delta.speedMs);
+                    out.writeUTF(delta.unitId == null ? "" : delta.unitId);
+                    out.writeLong(now);
+                }
+                deltaOut.write(bytes.toByteArray());
+                deltaOut.flush();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Не удалось записать рекорд в " + deltaFile.getAbsolutePath(), e);
+                closeDelta();
+            }
+        });
+    }
+
+    private void merge() {
+        File[] files = sharedDirectory.listFiles((dir, name) -> name.endsWith(DELTA_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<Delta> changed = new ArrayList<>();
+        Set<String> movedOffsets = new LinkedHashSet<>();
+        for (File file : files) {
+            try {
+                readNew(file, changed, movedOffsets);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Не удалось прочитать " + file.getName() + " из общего рейтинга.", e);
+            }
+        }
+        if (!movedOffsets.isEmpty()) {
+            appendState(changed, movedOffsets);
+        }
+        metrics.record(PluginMetrics.PHASE_MERGE, start);
+    }
+
+    /**
+     * Вносит запись в рейтинг, если она не хуже текущей. Возвращает false, если запись хуже:
+     * тогда её не нужно сохранять в состояние. Вызывается из любого потока.
+     */
+    private boolean improve(Delta delta) {
+        synchronized (leaderboard) {
+            LeaderboardIndex.Entry current = leaderboard.get(delta.playerName);
+            if (current == null) {
+                names.add(delta.playerName);
+            } else if (delta.speedMs < current.speedMs) {
+                return false;
+            }
+            if (current == null || delta.speedMs > current.speedMs) {
+                leaderboard.put(delta.playerName, delta.speedMs, delta.unitId);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Проигрывает файл состояния прошлого запуска: смещения в файлах узлов и записи рейтинга.
+     * Если файла нет, он не читается или записан для другой общей папки, файлы узлов читаются
+     * с начала; недочитанный хвост отбрасывается при следующей записи состояния.
+     */
+    private void loadState() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+                throw new IOException("Файл " + stateFile.getName() + " не является состоянием общего рейтинга SpeedHUD.");
+            }
+            if (!in.readUTF().equals(sharedDirectory.getAbsolutePath())) {
+                logger.info("Общая папка рейтинга изменилась, файлы узлов будут прочитаны заново.");
+                stateRewriteNeeded = true;
+                return;
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                String name = in.readUTF();
+                if (type == STATE_OFFSET) {
+                    offsets.put(name, in.readLong());
+                } else if (type == STATE_ENTRY) {
+                    double speedMs = in.readDouble();
+                    String unitId = in.readUTF();
+                    improve(new Delta(name, speedMs, unitId.isEmpty() ? null : unitId));
+                } else {
+                    throw new IOException("Неизвестная запись в " + stateFile.getName() + ": " + type);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // Запись оборвалась при сбое; всё, что до неё, уже применено.
+            stateRewriteNeeded = true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось прочитать " + stateFile.getName() + ", файлы общего рейтинга будут прочитаны заново.", e);
+            offsets.clear();
+            stateRewriteNeeded = true;
+        }
+        stateRecords = records;
+    }
+
+    /**
+     * Дописывает в файл состояния изменённые записи рейтинга и смещения после них: при сбое между ними
+     * файлы узлов будут прочитаны повторно, что слияние по максимуму допускает.
+     */
+    private void appendState(List<Delta> changed, Set<String> movedOffsets) {
+        int boardSize;
+        synchronized (leaderboard) {
+            boardSize = leaderboard.size();
+        }
+        if (stateRewriteNeeded || !stateFile.isFile()
+                || stateRecords + changed.size() + movedOffsets.size() > 2 * (boardSize + offsets.size()) + STATE_REWRITE_SLACK) {
+            rewriteState();
+            return;
+        }
+        try {
+            if (stateOut == null) {
+                stateOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile, true)));
+            }
+            for (Delta delta : changed) {
+                writeEntry(stateOut, delta.playerName, delta.speedMs, delta.unitId);
+            }
+            for (String name : movedOffsets) {
+                writeOffset(stateOut, name, offsets.get(name));
+            }
+            stateOut.flush();
+            stateRecords += changed.size() + movedOffsets.size();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось дописать " + stateFile.getName() + ".", e);
+            closeState();
+            stateRewriteNeeded = true;
+        }
+    }
+
+    /**
+     * Переписывает файл состояния из текущего рейтинга и смещений.
+     */
+    private void rewriteState() {
+        closeState();
+        List<LeaderboardIndex.Entry> entries;
+        synchronized (leaderboard) {
+            entries = leaderboard.page(0, leaderboard.size());
+        }
+        File tmp = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(STATE_MAGIC);
+                out.writeInt(STATE_VERSION);
+                out.writeUTF(sharedDirectory.getAbsolutePath());
+                for (LeaderboardIndex.Entry entry : entries) {
+                    writeEntry(out, entry.playerName, entry.speedMs, entry.unitId);
+                }
+                for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+                    writeOffset(out, offset.getKey(), offset.getValue());
+                }
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stateRecords = entries.size() + offsets.size();
+            stateRewriteNeeded = false;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось сохранить " + stateFile.getName() + ".", e);
+            stateRewriteNeeded = true;
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, String playerName, double speedMs, String unitId) throws IOException {
+        out.writeByte(STATE_ENTRY);
+        out.writeUTF(playerName);
+        out.writeDouble(speedMs);
+        out.writeUTF(unitId == null ? "" : unitId);
+    }
+
+    private static void writeOffset(DataOutputStream out, String name, long offset) throws IOException {
+        out.writeByte(STATE_OFFSET);
+        out.writeUTF(name);
+        out.writeLong(offset);
+    }
+
+    private void closeState() {
+        if (stateOut == null) {
+            return;
+        }
+        try {
+            stateOut.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось закрыть " + stateFile.getName() + ".", e);
+        }
+        stateOut = null;
+    }
+
+    /**
+     * Читает из файла только байты после сохранённого смещения. Недописанная последняя
+     * запись оставляется до следующего слияния.
+     */
+    private void readNew(File file, List<Delta> changed, Set<String> movedOffsets) throws IOException {
+        String name = file.getName();
+        if (badFiles.contains(name)) {
+            return;
+        }
+        long length = file.length();
+        long offset = offsets.getOrDefault(name, 0L);
+        if (length < offset) {
+            // Файл пересоздан: перечитываем целиком, слияние по максимуму это допускает.
+            offset = 0L;
+        }
+        if (length == offset) {
+            return;
+        }
+
+        byte[] data;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            data = new byte[(int) Math.min(Integer.MAX_VALUE, length - offset)];
+            in.readFully(data);
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        int consumed = 0;
+        if (offset == 0L) {
+            if (data.length < Integer.BYTES) {
+                return;
+            }
+            if (in.readInt() != DELTA_MAGIC) {
+                badFiles.add(name);
+                logger.warning("Файл " + name + " в общей папке рейтинга не является файлом SpeedHUD и будет пропущен.");
+                return;
+            }
+            consumed = Integer.BYTES;
+        }
+        while (true) {
+            try {
+                String playerName = in.readUTF();
+                double speedMs = in.readDouble();
+                String unitId = in.readUTF();
+                in.readLong();
+                consumed = data.length - bytes.available();
+
+                // Равная запись тоже сохраняется: так в состояние попадают свои рекорды,
+                // уже внесённые в рейтинг из submitRun и importRecords.
+                Delta delta = new Delta(playerName, speedMs, unitId.isEmpty() ? null : unitId);
+                if (improve(delta)) {
+                    changed.add(delta);
+                }
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        offsets.put(name, offset + consumed);
+        movedOffsets.add(name);
+    }
+
+    private void closeDelta() {
+        if (deltaOut == null) {
+            return;
+        }
+        try {
+            deltaOut.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось закрыть " + deltaFile.getName() + ".", e);
+        }
+        deltaOut = null;
+    }
+}
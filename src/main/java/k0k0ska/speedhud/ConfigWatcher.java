@@ -0,0 +1,109 @@
+package k0k0ska.speedhud;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Следит за config.yml и lang/messages_*.yml в папке плагина и вызывает onChange после правки.
+ * Редакторы часто сохраняют файл в несколько приёмов, поэтому onChange вызывается один раз,
+ * когда изменения затихли на DEBOUNCE_MILLIS. onChange выполняется в потоке наблюдателя.
+ */
+final class ConfigWatcher {
+
+    private static final long DEBOUNCE_MILLIS = 1000L;
+    private static final long JOIN_TIMEOUT_MILLIS = 5000L;
+
+    private final File dataFolder;
+    private final Runnable onChange;
+    private final Logger logger;
+    private WatchService watchService;
+    private Thread thread;
+
+    ConfigWatcher(File dataFolder, Runnable onChange, Logger logger) {
+        this.dataFolder = dataFolder;
+        this.onChange = onChange;
+        this.logger = logger;
+    }
+
+    void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            register(dataFolder);
+            File langFolder = new File(dataFolder, "lang");
+            if (langFolder.isDirectory()) {
+                register(langFolder);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось включить слежение за файлами настроек.", e);
+            stop();
+            return;
+        }
+        thread = new Thread(this::run, "SpeedHUD-Config-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Останавливает наблюдатель и ждёт его поток, так что после возврата onChange уже не вызывается.
+     */
+    void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+            watchService = null;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join(JOIN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    private void register(File folder) throws IOException {
+        folder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void run() {
+        WatchService service = watchService;
+        long deadline = 0L;
+        try {
+            while (true) {
+                WatchKey key = deadline == 0L ? service.take()
+                        : service.poll(Math.max(1L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    deadline = 0L;
+                    onChange.run();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path path && isWatched(path.getFileName().toString())) {
+                        deadline = System.currentTimeMillis() + DEBOUNCE_MILLIS;
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Наблюдатель остановлен.
+        }
+    }
+
+    private static boolean isWatched(String fileName) {
+        return fileName.equals("config.yml") || (fileName.startsWith("messages_") && fileName.endsWith(".yml"));
+    }
+}
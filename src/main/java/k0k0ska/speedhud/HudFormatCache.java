@@ -0,0 +1,42 @@
+package k0k0ska.speedhud;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.md_5.bungee.api.ChatColor;
+
+/**
+ * Заранее переведённые части строки HUD для текущего языка: префикс "Скорость: "
+ * с цветом для каждой полосы и названия единиц измерения.
+ * Пересобирается при загрузке сообщений, в цикле HUD только читается.
+ */
+final class HudFormatCache {
+
+    static final int BAND_GREEN = 0;
+    static final int BAND_YELLOW = 1;
+    static final int BAND_RED = 2;
+
+    private final String[] prefixByBand;
+    private final Map<String, String> unitSuffixes;
+
+    HudFormatCache(String hudPrefix, Map<String, String> unitDisplayNames) {
+        this.prefixByBand = new String[] {
+                hudPrefix + ChatColor.GREEN,
+                hudPrefix + ChatColor.YELLOW,
+                hudPrefix + ChatColor.RED
+        };
+        this.unitSuffixes = new HashMap<>();
+        for (Map.Entry<String, String> entry : unitDisplayNames.entrySet()) {
+            unitSuffixes.put(entry.getKey(), " " + entry.getValue());
+        }
+    }
+
+    String prefix(int band) {
+        return prefixByBand[band];
+    }
+
+    String unitSuffix(String unitId) {
+        String suffix = unitSuffixes.get(unitId);
+        return suffix == null ? "" : suffix;
+    }
+}
@@ -0,0 +1,60 @@
+package k0k0ska.speedhud;
+
+/**
+ * Снижает частоту замеров для HUD, когда работа плагина в основном потоке не укладывается в бюджет.
+ * Измеряется длительность задачи тика плагина (экспоненциальное среднее), а не интервал между тиками:
+ * интервал не бывает короче 50 мс и растёт от чужой нагрузки, которую торможение HUD не снимет.
+ * Раз в секунду уровень торможения растёт на 1, если среднее выше бюджета, и падает на 1,
+ * если оно опустилось ниже 90% бюджета; интервал замеров умножается на 2^уровень. Только основной поток.
+ */
+final class HudRateController {
+
+    private static final double SMOOTHING = 0.1;
+    private static final double RECOVERY_RATIO = 0.9;
+
+    private boolean enabled;
+    private long budgetNanos;
+    private int maxLevel;
+
+    private double averageNanos;
+    private int ticksSinceAdjust;
+    private int level;
+
+    void configure(boolean enabled, double budgetMillis, int maxLevel) {
+        this.enabled = enabled;
+        this.budgetNanos = (long) (budgetMillis * 1_000_000L);
+        this.maxLevel = Math.max(0, Math.min(maxLevel, 3));
+        this.level = enabled ? Math.min(level, this.maxLevel) : 0;
+    }
+
+    /**
+     * Вызывается в конце каждого тика с длительностью работы плагина в этом тике.
+     * Возвращает true, если уровень торможения изменился.
+     */
+    boolean onTick(long workNanos) {
+        averageNanos = averageNanos == 0.0 ? workNanos : averageNanos + (workNanos - averageNanos) * SMOOTHING;
+        if (!enabled || ++ticksSinceAdjust < SpeedSampleState.TICKS_PER_SECOND) {
+            return false;
+        }
+        ticksSinceAdjust = 0;
+        int previous = level;
+        if (averageNanos > budgetNanos) {
+            level = Math.min(maxLevel, level + 1);
+        } else if (averageNanos < budgetNanos * RECOVERY_RATIO) {
+            level = Math.max(0, level - 1);
+        }
+        return level != previous;
+    }
+
+    int multiplier() {
+        return 1 << level;
+    }
+
+    int level() {
+        return level;
+    }
+
+    double averageWorkMillis() {
+        return averageNanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,274 @@
+package k0k0ska.speedhud;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Рейтинг рекордов скорости, поддерживаемый инкрементально.
+ * Декартово дерево (treap) с размерами поддеревьев: вставка, удаление,
+ * поиск места игрока и переход к странице стоят O(log n).
+ * Порядок: скорость по убыванию, при равенстве - имя игрока.
+ * Не потокобезопасен.
+ */
+final class LeaderboardIndex {
+
+    static final class Entry {
+        final String playerName;
+        final double speedMs;
+        final String unitId;
+
+        Entry(String playerName, double speedMs, String unitId) {
+            this.playerName = playerName;
+            this.speedMs = speedMs;
+            this.unitId = unitId;
+        }
+    }
+
+    private static final class Node {
+        final Entry entry;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(Entry entry, int priority) {
+            this.entry = entry;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<String, Node> byName = new HashMap<>();
+    private Node root;
+    private int seed = 0x2545F491;
+
+    int size() {
+        return byName.size();
+    }
+
+    Entry get(String playerName) {
+        Node node = byName.get(playerName);
+        return node == null ? null : node.entry;
+    }
+
+    void put(String playerName, double speedMs, String unitId) {
+        remove(playerName);
+        Node node = new Node(new Entry(playerName, speedMs, unitId), nextPriority());
+        byName.put(playerName, node);
+        root = insert(root, node);
+    }
+
+    boolean remove(String playerName) {
+        Node node = byName.remove(playerName);
+        if (node == null) {
+            return false;
+        }
+        root = delete(root, node.entry);
+        return true;
+    }
+
+    /**
+     * Место игрока в рейтинге, начиная с 1, или -1, если у игрока нет рекорда.
+     */
+    int rankOf(String playerName) {
+        Node target = byName.get(playerName);
+        if (target == null) {
+            return -1;
+        }
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            int cmp = compare(target.entry, node.entry);
+            if (cmp < 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                if (cmp == 0) {
+                    return rank;
+                }
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Число записей, стоящих в рейтинге строго перед (speedMs, playerName); сам ключ может отсутствовать.
+     */
+    int countBefore(double speedMs, String playerName) {
+        Entry key = new Entry(playerName, speedMs, null);
+        int count = 0;
+        Node node = root;
+        while (node != null) {
+            if (compare(node.entry, key) < 0) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Записи рейтинга начиная с позиции offset (с нуля), не больше limit штук.
+     */
+    List<Entry> page(int offset, int limit) {
+        List<Entry> result = new ArrayList<>(Math.max(0, Math.min(limit, size() - offset)));
+        if (offset < 0 || offset >= size() || limit <= 0) {
+            return result;
+        }
+        Iterator<Entry> entries = iterator(offset);
+        while (entries.hasNext() && result.size() < limit) {
+            result.add(entries.next());
+        }
+        return result;
+    }
+
+    /**
+     * Обход рейтинга по порядку с позиции offset (с нуля) прямо по дереву, без копирования.
+     * Спуск к offset стоит O(log n), каждый следующий шаг - O(1) в среднем.
+     * Дерево нельзя менять, пока обход не закончен.
+     */
+    Iterator<Entry> iterator(int offset) {
+        // Спускаемся к элементу с номером offset, запоминая путь для обхода по порядку.
+        Deque<Node> stack = new ArrayDeque<>();
+        Node node = offset < 0 ? null : root;
+        int k = offset;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (k < leftSize) {
+                stack.push(node);
+                node = node.left;
+            } else if (k == leftSize) {
+                stack.push(node);
+                break;
+            } else {
+                k -= leftSize + 1;
+                node = node.right;
+            }
+        }
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node current = stack.pop();
+                Node next = current.right;
+                while (next != null) {
+                    stack.push(next);
+                    next = next.left;
+                }
+                return current.entry;
+            }
+        };
+    }
+
+    private static int compare(Entry a, Entry b) {
+        int bySpeed = Double.compare(b.speedMs, a.speedMs);
+        return bySpeed != 0 ? bySpeed : a.playerName.compareTo(b.playerName);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private static Node insert(Node node, Node inserted) {
+        if (node == null) {
+            return inserted;
+        }
+        if (inserted.priority > node.priority) {
+            Node[] parts = split(node, inserted.entry);
+            inserted.left = parts[0];
+            inserted.right = parts[1];
+            update(inserted);
+            return inserted;
+        }
+        if (compare(inserted.entry, node.entry) < 0) {
+            node.left = insert(node.left, inserted);
+        } else {
+            node.right = insert(node.right, inserted);
+        }
+        update(node);
+        return node;
+    }
+
+    private static Node delete(Node node, Entry entry) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = compare(entry, node.entry);
+        if (cmp == 0) {
+            return merge(node.left, node.right);
+        }
+        if (cmp < 0) {
+            node.left = delete(node.left, entry);
+        } else {
+            node.right = delete(node.right, entry);
+        }
+        update(node);
+        return node;
+    }
+
+    // Делит дерево на элементы меньше key и элементы не меньше key.
+    private static Node[] split(Node node, Entry key) {
+        if (node == null) {
+            return new Node[2];
+        }
+        if (compare(node.entry, key) < 0) {
+            Node[] parts = split(node.right, key);
+            node.right = parts[0];
+            update(node);
+            parts[0] = node;
+            return parts;
+        }
+        Node[] parts = split(node.left, key);
+        node.left = parts[1];
+        update(node);
+        parts[1] = node;
+        return parts;
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private int nextPriority() {
+        // xorshift: детерминированный и без выделения памяти.
+        int x = seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed = x;
+        return x;
+    }
+}
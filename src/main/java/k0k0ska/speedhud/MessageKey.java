@@ -0,0 +1,97 @@
+package k0k0ska.speedhud;
+
+/**
+ * Сообщения из lang/messages_*.yml. Для каждого задан порядок подстановок: аргументы
+ * {@link MessageTemplates#render(MessageKey, String...)} передаются по этим номерам.
+ * %prefix% подставляется при загрузке и здесь не указывается.
+ */
+enum MessageKey {
+
+    PLUGIN_ENABLED("plugin_enabled"),
+    PLUGIN_DISABLED("plugin_disabled"),
+    COMMAND_NOT_FOUND_IN_YML("command_not_found_in_yml"),
+
+    HUD_ENABLED("hud_enabled"),
+    HUD_DISABLED("hud_disabled"),
+    UNIT_CHANGED("unit_changed", "unit"),
+    UNIT_UNKNOWN("unit_unknown", "unit"),
+    CONFIG_UPDATED("config_updated"),
+    CONFIG_RELOAD_FAILED("config_reload_failed"),
+    PLUGIN_RELOADING("plugin_reloading"),
+    NO_PERMISSION("no_permission"),
+    NO_CONSOLE_PLAYER_COMMAND("no_console_player_command"),
+    UNKNOWN_SUBCOMMAND("unknown_subcommand", Help.PARAMETERS),
+    NO_AVAILABLE_UNITS("no_available_units"),
+
+    HELP_HEADER("help_header", Help.PARAMETERS),
+    HELP_ENABLE("help_enable", Help.PARAMETERS),
+    HELP_DISABLE("help_disable", Help.PARAMETERS),
+    HELP_UNIT("help_unit", Help.PARAMETERS),
+    HELP_RELOAD("help_reload", Help.PARAMETERS),
+    HELP_HELP("help_help", Help.PARAMETERS),
+    HELP_STARTRECORDSPEED("help_startrecordspeed", Help.PARAMETERS),
+    HELP_TOPSPEED("help_topspeed", Help.PARAMETERS),
+    HELP_TOPTOGGLEUNIT("help_toptoggleunit", Help.PARAMETERS),
+    HELP_MYRANK("help_myrank", Help.PARAMETERS),
+    HELP_STATS("help_stats", Help.PARAMETERS),
+    HELP_EXPORT("help_export", Help.PARAMETERS),
+    HELP_IMPORT("help_import", Help.PARAMETERS),
+    HELP_HISTORY("help_history", Help.PARAMETERS),
+
+    START_RECORD_PLAYER_ONLY("start_record_player_only"),
+    START_RECORD_ALREADY_RECORDING("start_record_already_recording"),
+    START_RECORD_STARTED("start_record_started", Help.PARAMETERS),
+    START_RECORD_FINISHED("start_record_finished", "speed", "average", "seconds", "unit"),
+    START_RECORD_PERSONAL_BEST("start_record_personal_best"),
+    START_RECORD_NOT_PERSONAL_BEST("start_record_not_personal_best", "best", "unit"),
+
+    TOPSPEED_FILE_SAVE_FAILED("topspeed_file_save_failed"),
+    TOPSPEED_NO_DATA("topspeed_no_data"),
+    TOPSPEED_HEADER("topspeed_header", "page", "pages"),
+    TOPSPEED_ENTRY("topspeed_entry", "rank", "player", "speed", "unit"),
+    TOPSPEED_INVALID_PAGE("topspeed_invalid_page", "pages"),
+    MYRANK_ENTRY("myrank_entry", "rank", "total", "speed", "unit"),
+    MYRANK_NO_DATA("myrank_no_data"),
+    TOPSPEED_UNIT_CHANGED("topspeed_unit_changed", "unit"),
+    TOPSPEED_NO_AVAILABLE_UNITS("topspeed_no_available_units"),
+
+    HUD_DISPLAY("hud_display"),
+
+    STATS_HEADER("stats_header", "seconds"),
+    STATS_PHASE("stats_phase", "phase", "count", "mean", "p50", "p99", "max"),
+    STATS_COUNTERS("stats_counters", "sampled", "sent", "skipped", "saves"),
+    STATS_RESET("stats_reset"),
+
+    EXPORT_DONE("export_done", "file", "count"),
+    IMPORT_DONE("import_done", "file", "count"),
+    IMPORT_FILE_MISSING("import_file_missing", "file"),
+    TRANSFER_FAILED("transfer_failed", "file"),
+
+    HISTORY_HEADER("history_header", "player", "window"),
+    HISTORY_WINDOW("history_window", "window", "p50", "p95", "max", "unit", "count"),
+    HISTORY_PERIOD("history_period", "time", "p50", "p95", "max", "unit", "count"),
+    HISTORY_NO_DATA("history_no_data", "player"),
+    HISTORY_USAGE("history_usage", Help.PARAMETERS),
+    HISTORY_DISABLED("history_disabled");
+
+    /**
+     * Общие подстановки строк справки: имя команды, подкоманды и длительность записи.
+     */
+    static final class Help {
+        static final String[] PARAMETERS = {
+                "label", "enable", "disable", "unit", "reload", "help", "startrecordspeed", "topspeed",
+                "toptoggleunit", "myrank", "stats", "export", "import", "history", "seconds"
+        };
+
+        private Help() {
+        }
+    }
+
+    final String path;
+    final String[] parameters;
+
+    MessageKey(String path, String... parameters) {
+        this.path = path;
+        this.parameters = parameters;
+    }
+}
@@ -0,0 +1,160 @@
+package k0k0ska.speedhud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import net.md_5.bungee.api.ChatColor;
+
+/**
+ * Сообщения языкового файла, разобранные один раз при загрузке: %prefix% уже подставлен,
+ * цветовые коды уже переведены, текст разбит на неизменные куски и номера подстановок.
+ * Вывод сообщения - один проход по кускам в переиспользуемый StringBuilder.
+ * Отсутствующие сообщения и неизвестные подстановки сообщаются в лог при загрузке.
+ * Только основной поток.
+ */
+final class MessageTemplates {
+
+    private static final class Template {
+        // literals.length == slots.length + 1: кусок, подстановка, кусок, ...
+        final String[] literals;
+        final int[] slots;
+
+        Template(String[] literals, int[] slots) {
+            this.literals = literals;
+            this.slots = slots;
+        }
+    }
+
+    private final Template[] templates;
+    // Сообщения без подстановок по пути, например названия единиц из speed_units.*.display_name_key.
+    private final Map<String, String> texts;
+    private final StringBuilder builder = new StringBuilder(128);
+
+    private MessageTemplates(Template[] templates, Map<String, String> texts) {
+        this.templates = templates;
+        this.texts = texts;
+    }
+
+    /**
+     * Разбирает сообщения из секции messages. Если logger не null, пишет в него предупреждения
+     * об отсутствующих сообщениях и подстановках, которых у сообщения нет.
+     */
+    static MessageTemplates compile(ConfigurationSection config, Logger logger) {
+        String prefix = config.getString("command_prefix", "SpeedHUD");
+        ConfigurationSection messages = config.getConfigurationSection("messages");
+
+        Map<String, String> texts = new HashMap<>();
+        if (messages != null) {
+            for (String path : messages.getKeys(false)) {
+                String message = messages.getString(path);
+                if (message != null) {
+                    texts.put(path, ChatColor.translateAlternateColorCodes('&', message.replace("%prefix%", prefix)));
+                }
+            }
+        }
+
+        MessageKey[] keys = MessageKey.values();
+        Template[] templates = new Template[keys.length];
+        for (MessageKey key : keys) {
+            String message = messages == null ? null : messages.getString(key.path);
+            if (message == null) {
+                if (logger != null) {
+                    logger.warning("В языковом файле нет сообщения '" + key.path + "'.");
+                }
+                message = key.path;
+            }
+            templates[key.ordinal()] = parse(key, message.replace("%prefix%", prefix), logger);
+        }
+        return new MessageTemplates(templates, texts);
+    }
+
+    String render(MessageKey key, String... args) {
+        Template template = templates[key.ordinal()];
+        if (template.slots.length == 0) {
+            return template.literals[0];
+        }
+        StringBuilder out = builder;
+        out.setLength(0);
+        out.append(template.literals[0]);
+        for (int i = 0; i < template.slots.length; i++) {
+            int slot = template.slots[i];
+            if (slot < args.length && args[slot] != null) {
+                out.append(args[slot]);
+            }
+            out.append(template.literals[i + 1]);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Сообщение по пути без подстановок; сам путь, если сообщения нет.
+     */
+    String text(String path) {
+        return texts.getOrDefault(path, path);
+    }
+
+    boolean has(String path) {
+        return texts.containsKey(path);
+    }
+
+    private static Template parse(MessageKey key, String message, Logger logger) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < message.length()) {
+            int open = message.indexOf('%', position);
+            int close = open < 0 ? -1 : message.indexOf('%', open + 1);
+            if (close < 0) {
+                literal.append(message, position, message.length());
+                break;
+            }
+            String name = message.substring(open + 1, close);
+            if (!isPlaceholderName(name)) {
+                // Одиночный знак процента, например "50%": закрывающий знак может начинать подстановку.
+                literal.append(message, position, open + 1);
+                position = open + 1;
+                continue;
+            }
+            literal.append(message, position, open);
+            int slot = Arrays.asList(key.parameters).indexOf(name);
+            if (slot < 0) {
+                if (logger != null) {
+                    logger.warning("Сообщение '" + key.path + "' содержит неизвестную подстановку %" + name + "%.");
+                }
+                literal.append(message, open, close + 1);
+            } else {
+                literals.add(ChatColor.translateAlternateColorCodes('&', literal.toString()));
+                literal.setLength(0);
+                slots.add(slot);
+            }
+            position = close + 1;
+        }
+        literals.add(ChatColor.translateAlternateColorCodes('&', literal.toString()));
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new Template(literals.toArray(new String[0]), slotArray);
+    }
+
+    private static boolean isPlaceholderName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package k0k0ska.speedhud;
+
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+
+/**
+ * Состояние одного игрока на время его нахождения на сервере.
+ * Поля с volatile можно читать из асинхронных потоков; idle и lastHud меняются только в основном потоке.
+ */
+final class PlayerSession {
+
+    final UUID playerId;
+    final Player player;
+
+    volatile boolean hudEnabled;
+    volatile boolean recording;
+    // null - используется единица по умолчанию.
+    volatile String unitId;
+    volatile String topUnitId;
+
+    boolean idle;
+    // Последний отправленный HUD: пока игрок припаркован, он повторяется, чтобы action bar не гас.
+    BaseComponent lastHud;
+    // Тик окончания текущей записи скорости.
+    long recordingEndTick;
+    // Тик последнего замера для HUD, для миров с более редкими замерами.
+    long lastHudSampleTick;
+
+    PlayerSession(Player player) {
+        this.playerId = player.getUniqueId();
+        this.player = player;
+    }
+}
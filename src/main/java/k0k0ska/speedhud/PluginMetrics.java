@@ -0,0 +1,62 @@
+package k0k0ska.speedhud;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счётчики и гистограммы задержек по фазам работы плагина для /speedhud stats.
+ * Все методы можно вызывать из любого потока.
+ */
+final class PluginMetrics {
+
+    static final String PHASE_SAMPLING = "sampling";
+    static final String PHASE_WORKER = "worker";
+    static final String PHASE_HUD_SEND = "hud_send";
+    static final String PHASE_SAVE = "save";
+    static final String PHASE_COMPACT = "compact";
+    static final String PHASE_QUERY = "query";
+    static final String PHASE_MERGE = "merge";
+    static final String PHASE_HISTORY_FLUSH = "history_flush";
+    static final String PHASE_COMMAND_PREFIX = "command/";
+
+    final LongAdder playersSampled = new LongAdder();
+    final LongAdder packetsSent = new LongAdder();
+    final LongAdder sendsSkipped = new LongAdder();
+    final LongAdder saves = new LongAdder();
+
+    private final Map<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+    private volatile long since = System.currentTimeMillis();
+
+    LatencyHistogram phase(String name) {
+        LatencyHistogram histogram = phases.get(name);
+        return histogram != null ? histogram : phases.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    void record(String phase, long startNanos) {
+        phase(phase).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Фазы в алфавитном порядке для вывода.
+     */
+    Map<String, LatencyHistogram> phases() {
+        return new TreeMap<>(phases);
+    }
+
+    long since() {
+        return since;
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : phases.values()) {
+            histogram.reset();
+        }
+        playersSampled.reset();
+        packetsSent.reset();
+        sendsSkipped.reset();
+        saves.reset();
+        since = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,45 @@
+package k0k0ska.speedhud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Варианты для подсказок команд, найденные по началу слова без учёта регистра.
+ * Ключи хранятся отсортированными, поэтому все слова с одним префиксом лежат подряд
+ * и поиск стоит O(log n + k) при любом размере набора.
+ * Не потокобезопасен.
+ */
+final class PrefixIndex {
+
+    // Слово в нижнем регистре -> слово в исходном написании.
+    private final TreeMap<String, String> words = new TreeMap<>();
+
+    void add(String word) {
+        words.putIfAbsent(word.toLowerCase(), word);
+    }
+
+    void remove(String word) {
+        words.remove(word.toLowerCase(), word);
+    }
+
+    int size() {
+        return words.size();
+    }
+
+    /**
+     * Слова, начинающиеся с prefix, по алфавиту, не больше limit штук.
+     */
+    List<String> complete(String prefix, int limit) {
+        String from = prefix.toLowerCase();
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, String> entry : words.tailMap(from, true).entrySet()) {
+            if (result.size() >= limit || !entry.getKey().startsWith(from)) {
+                break;
+            }
+            result.add(entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+package k0k0ska.speedhud;
+
+import java.util.BitSet;
+
+/**
+ * Множество номеров записей снимка от 0 до capacity - 1. Проверка принадлежности стоит O(1),
+ * число элементов меньше данного номера - O(log n) (дерево Фенвика поверх битового набора).
+ * Память - по int на запись снимка, выделяется при первом добавлении.
+ * Не потокобезопасно.
+ */
+final class RankedIndexSet {
+
+    private final int capacity;
+    private BitSet bits;
+    private int[] tree;
+    private int size;
+
+    RankedIndexSet(int capacity) {
+        this.capacity = capacity;
+    }
+
+    boolean add(int index) {
+        if (bits == null) {
+            bits = new BitSet(capacity);
+            tree = new int[capacity + 1];
+        } else if (bits.get(index)) {
+            return false;
+        }
+        bits.set(index);
+        for (int i = index + 1; i <= capacity; i += i & -i) {
+            tree[i]++;
+        }
+        size++;
+        return true;
+    }
+
+    boolean contains(int index) {
+        return bits != null && bits.get(index);
+    }
+
+    /**
+     * Число элементов с номером строго меньше index.
+     */
+    int countBelow(int index) {
+        int count = 0;
+        if (tree != null) {
+            for (int i = Math.min(index, capacity); i > 0; i -= i & -i) {
+                count += tree[i];
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    RankedIndexSet copy() {
+        RankedIndexSet copy = new RankedIndexSet(capacity);
+        if (bits != null) {
+            copy.bits = (BitSet) bits.clone();
+            copy.tree = tree.clone();
+        }
+        copy.size = size;
+        return copy;
+    }
+}
@@ -0,0 +1,100 @@
+package k0k0ska.speedhud;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Записи максимальной скорости. Каждый записывающий игрок имеет собственное состояние
+ * замеров со своей частотой, отдельное от замеров для HUD, и накапливает пик,
+ * сумму скоростей и охваченные тики без выделения памяти на замер.
+ * Используется только рабочим потоком.
+ */
+final class RecordingEngine {
+
+    /**
+     * Итог одной записи. Пик - максимум сглаженной скорости, среднее - по всем замерам записи.
+     */
+    static final class Run {
+        final double peakSpeedMs;
+        final double averageSpeedMs;
+        final int durationTicks;
+
+        Run(double peakSpeedMs, double averageSpeedMs, int durationTicks) {
+            this.peakSpeedMs = peakSpeedMs;
+            this.averageSpeedMs = averageSpeedMs;
+            this.durationTicks = durationTicks;
+        }
+    }
+
+    private static final class Recorder {
+        final SpeedSampleState state;
+        long firstTick = -1L;
+        long lastTick;
+        double peak;
+        double sum;
+        int samples;
+
+        Recorder(int historySize) {
+            this.state = new SpeedSampleState(historySize);
+        }
+    }
+
+    private final Map<UUID, Recorder> recorders = new HashMap<>();
+    private int historySize = 1;
+
+    void configure(int historySize) {
+        this.historySize = historySize;
+    }
+
+    int active() {
+        return recorders.size();
+    }
+
+    void start(UUID playerId) {
+        recorders.put(playerId, new Recorder(historySize));
+    }
+
+    void sample(UUID playerId, boolean hasWorld, long worldMost, long worldLeast, double x, double y, double z, long tick,
+                boolean horizontalOnly, double maxSpeed, double velocity) {
+        Recorder recorder = recorders.get(playerId);
+        if (recorder == null || recorder.firstTick >= 0 && tick <= recorder.lastTick) {
+            return;
+        }
+        double smoothed = recorder.state.sample(hasWorld, worldMost, worldLeast, x, y, z, tick, horizontalOnly, maxSpeed, velocity);
+        if (recorder.firstTick < 0) {
+            recorder.firstTick = tick;
+        }
+        recorder.lastTick = tick;
+        if (!recorder.state.lastAccepted()) {
+            // Первый замер, смена мира и телепорт задают только начальную точку.
+            return;
+        }
+        recorder.peak = Math.max(recorder.peak, smoothed);
+        recorder.sum += recorder.state.lastSpeed();
+        recorder.samples++;
+    }
+
+    /**
+     * Сбрасывает последнюю позицию записи, чтобы следующий замер не считался перемещением.
+     */
+    void forgetPosition(UUID playerId) {
+        Recorder recorder = recorders.get(playerId);
+        if (recorder != null) {
+            recorder.state.forgetPosition();
+        }
+    }
+
+    /**
+     * Завершает запись игрока. Возвращает null, если записи не было.
+     */
+    Run finish(UUID playerId) {
+        Recorder recorder = recorders.remove(playerId);
+        if (recorder == null) {
+            return null;
+        }
+        double average = recorder.samples == 0 ? 0.0 : recorder.sum / recorder.samples;
+        int duration = recorder.firstTick < 0 ? 0 : (int) (recorder.lastTick - recorder.firstTick);
+        return new Run(recorder.peak, average, duration);
+    }
+}
@@ -0,0 +1,75 @@
+package k0k0ska.speedhud;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Снимок позиций игроков за один тик, который основной поток передаёт рабочему потоку.
+ * Хранит только примитивы и ссылки на неизменяемые объекты; после обработки
+ * возвращается в пул и переиспользуется.
+ */
+final class SampleBatch {
+
+    static final byte KIND_HUD = 0;
+    static final byte KIND_RECORDER = 1;
+
+    long tick;
+    int size;
+    UUID[] playerIds = new UUID[16];
+    byte[] kinds = new byte[16];
+    boolean[] hasWorld = new boolean[16];
+    long[] worldMost = new long[16];
+    long[] worldLeast = new long[16];
+    double[] xs = new double[16];
+    double[] ys = new double[16];
+    double[] zs = new double[16];
+    // Единица HUD игрока или null, если HUD выключен.
+    SpeedUnit[] hudUnits = new SpeedUnit[16];
+    SamplingPolicy[] policies = new SamplingPolicy[16];
+    // Скорость транспорта или элитр в м/с, NaN - считать по смещению.
+    double[] velocities = new double[16];
+
+    void reset(long tick) {
+        this.tick = tick;
+        Arrays.fill(playerIds, 0, size, null);
+        Arrays.fill(hudUnits, 0, size, null);
+        Arrays.fill(policies, 0, size, null);
+        size = 0;
+    }
+
+    void add(UUID playerId, byte kind, UUID worldId, double x, double y, double z, SpeedUnit hudUnit,
+             SamplingPolicy policy, double velocity) {
+        if (size == playerIds.length) {
+            grow();
+        }
+        int i = size++;
+        playerIds[i] = playerId;
+        kinds[i] = kind;
+        hasWorld[i] = worldId != null;
+        if (worldId != null) {
+            worldMost[i] = worldId.getMostSignificantBits();
+            worldLeast[i] = worldId.getLeastSignificantBits();
+        }
+        xs[i] = x;
+        ys[i] = y;
+        zs[i] = z;
+        hudUnits[i] = hudUnit;
+        policies[i] = policy;
+        velocities[i] = velocity;
+    }
+
+    private void grow() {
+        int capacity = playerIds.length * 2;
+        playerIds = Arrays.copyOf(playerIds, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        hasWorld = Arrays.copyOf(hasWorld, capacity);
+        worldMost = Arrays.copyOf(worldMost, capacity);
+        worldLeast = Arrays.copyOf(worldLeast, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        zs = Arrays.copyOf(zs, capacity);
+        hudUnits = Arrays.copyOf(hudUnits, capacity);
+        policies = Arrays.copyOf(policies, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+    }
+}
@@ -0,0 +1,43 @@
+package k0k0ska.speedhud;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Правила замера скорости в одном мире. Неизменяема, поэтому передаётся рабочему потоку по ссылке.
+ */
+final class SamplingPolicy {
+
+    static final SamplingPolicy DEFAULT = new SamplingPolicy(true, 0, false, 80.0, true);
+
+    final boolean enabled;
+    // 0 - общий sampling.interval_ticks; больше него - замер для HUD реже в этом мире.
+    final int intervalTicks;
+    final boolean horizontalOnly;
+    // Скорость выше этой считается телепортом и не попадает в историю.
+    final double maxSpeedMs;
+    final boolean useVehicleVelocity;
+
+    SamplingPolicy(boolean enabled, int intervalTicks, boolean horizontalOnly, double maxSpeedMs, boolean useVehicleVelocity) {
+        this.enabled = enabled;
+        this.intervalTicks = intervalTicks;
+        this.horizontalOnly = horizontalOnly;
+        this.maxSpeedMs = maxSpeedMs;
+        this.useVehicleVelocity = useVehicleVelocity;
+    }
+
+    /**
+     * Читает политику из секции; отсутствующие ключи берутся из defaults.
+     */
+    static SamplingPolicy fromConfig(ConfigurationSection section, SamplingPolicy defaults) {
+        if (section == null) {
+            return defaults;
+        }
+        double maxSpeed = section.getDouble("max_speed_ms", defaults.maxSpeedMs);
+        return new SamplingPolicy(
+                section.getBoolean("enabled", defaults.enabled),
+                Math.max(0, section.getInt("interval_ticks", defaults.intervalTicks)),
+                section.getBoolean("horizontal_only", defaults.horizontalOnly),
+                maxSpeed <= 0.0 ? Double.POSITIVE_INFINITY : maxSpeed,
+                section.getBoolean("use_vehicle_velocity", defaults.useVehicleVelocity));
+    }
+}
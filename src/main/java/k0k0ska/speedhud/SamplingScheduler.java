@@ -0,0 +1,102 @@
+package k0k0ska.speedhud;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Распределяет участников по N корзинам и за один тик обрабатывает одну корзину,
+ * так что каждый участник обрабатывается раз в N тиков, а нагрузка размазана по тикам
+ * вместо пика раз в N тиков. Новый участник попадает в наименее заполненную корзину.
+ * Не потокобезопасен.
+ */
+final class SamplingScheduler<T> {
+
+    private final List<Set<T>> buckets = new ArrayList<>();
+    private final Map<T, Integer> bucketOf = new HashMap<>();
+    private int cursor;
+
+    SamplingScheduler(int bucketCount) {
+        resize(bucketCount);
+    }
+
+    int bucketCount() {
+        return buckets.size();
+    }
+
+    int size() {
+        return bucketOf.size();
+    }
+
+    boolean contains(T member) {
+        return bucketOf.containsKey(member);
+    }
+
+    boolean add(T member) {
+        if (bucketOf.containsKey(member)) {
+            return false;
+        }
+        int target = 0;
+        for (int i = 1; i < buckets.size(); i++) {
+            if (buckets.get(i).size() < buckets.get(target).size()) {
+                target = i;
+            }
+        }
+        buckets.get(target).add(member);
+        bucketOf.put(member, target);
+        return true;
+    }
+
+    boolean remove(T member) {
+        Integer bucket = bucketOf.remove(member);
+        if (bucket == null) {
+            return false;
+        }
+        buckets.get(bucket).remove(member);
+        return true;
+    }
+
+    void clear() {
+        for (Set<T> bucket : buckets) {
+            bucket.clear();
+        }
+        bucketOf.clear();
+    }
+
+    /**
+     * Меняет число корзин и заново равномерно раскладывает участников.
+     */
+    void resize(int bucketCount) {
+        List<T> members = new ArrayList<>(bucketOf.keySet());
+        buckets.clear();
+        bucketOf.clear();
+        for (int i = 0; i < Math.max(1, bucketCount); i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+        cursor = 0;
+        for (T member : members) {
+            add(member);
+        }
+    }
+
+    /**
+     * Обрабатывает очередную корзину. Если visitor вернул true, участник удаляется.
+     */
+    void tick(Predicate<T> visitor) {
+        Set<T> bucket = buckets.get(cursor);
+        cursor = (cursor + 1) % buckets.size();
+        Iterator<T> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            T member = iterator.next();
+            if (visitor.test(member)) {
+                iterator.remove();
+                bucketOf.remove(member);
+            }
+        }
+    }
+}
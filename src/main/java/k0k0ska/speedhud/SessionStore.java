@@ -0,0 +1,74 @@
+package k0k0ska.speedhud;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Сессии игроков по UUID. Сессия создаётся при входе и удаляется при выходе,
+ * поэтому память не растёт со временем работы сервера. Выбранные единицы измерения
+ * запоминаются при выходе в ограниченном LRU-кэше и восстанавливаются при повторном входе.
+ */
+final class SessionStore {
+
+    private final Map<UUID, PlayerSession> sessions = new ConcurrentHashMap<>();
+    private final Map<UUID, String[]> rememberedUnits;
+
+    SessionStore(int rememberedLimit) {
+        int limit = Math.max(0, rememberedLimit);
+        this.rememberedUnits = new LinkedHashMap<UUID, String[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, String[]> eldest) {
+                return size() > limit;
+            }
+        };
+    }
+
+    PlayerSession get(UUID playerId) {
+        return sessions.get(playerId);
+    }
+
+    PlayerSession get(Player player) {
+        PlayerSession session = sessions.get(player.getUniqueId());
+        return session != null ? session : open(player);
+    }
+
+    Collection<PlayerSession> all() {
+        return sessions.values();
+    }
+
+    PlayerSession open(Player player) {
+        return sessions.computeIfAbsent(player.getUniqueId(), id -> {
+            PlayerSession session = new PlayerSession(player);
+            String[] units;
+            synchronized (rememberedUnits) {
+                units = rememberedUnits.remove(id);
+            }
+            if (units != null) {
+                session.unitId = units[0];
+                session.topUnitId = units[1];
+            }
+            return session;
+        });
+    }
+
+    PlayerSession close(UUID playerId) {
+        PlayerSession session = sessions.remove(playerId);
+        if (session != null && (session.unitId != null || session.topUnitId != null)) {
+            synchronized (rememberedUnits) {
+                rememberedUnits.put(playerId, new String[] {session.unitId, session.topUnitId});
+            }
+        }
+        return session;
+    }
+
+    void closeAll() {
+        for (UUID playerId : sessions.keySet()) {
+            close(playerId);
+        }
+    }
+}
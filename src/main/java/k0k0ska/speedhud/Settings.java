@@ -0,0 +1,253 @@
+package k0k0ska.speedhud;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Настройки из config.yml и языкового файла, разобранные целиком: единицы, пороги цветов,
+ * имена подкоманд, правила замеров и готовые шаблоны сообщений. Неизменяемы. Перезагрузка
+ * собирает новый снимок вне основного потока и подменяет ссылку одним присваиванием,
+ * поэтому задача замеров и команды никогда не видят наполовину обновлённых настроек.
+ * Таблицы поиска подкоманд и единиц тоже собираются здесь, один раз на снимок.
+ * Настройки хранилищ, кластера и истории читаются только при включении плагина и сюда не входят.
+ */
+final class Settings {
+
+    private static final MessageKey[] HELP_LINES = {
+            MessageKey.HELP_HEADER, MessageKey.HELP_ENABLE, MessageKey.HELP_DISABLE, MessageKey.HELP_UNIT,
+            MessageKey.HELP_RELOAD, MessageKey.HELP_HELP, MessageKey.HELP_STARTRECORDSPEED, MessageKey.HELP_TOPSPEED,
+            MessageKey.HELP_TOPTOGGLEUNIT, MessageKey.HELP_MYRANK, MessageKey.HELP_STATS, MessageKey.HELP_EXPORT,
+            MessageKey.HELP_IMPORT, MessageKey.HELP_HISTORY
+    };
+    // Бюджет работы плагина в основном потоке за тик; весь тик - 50 мс.
+    private static final double DEFAULT_MAIN_THREAD_BUDGET_MS = 2.0;
+    private static final double MAX_MAIN_THREAD_BUDGET_MS = 50.0;
+
+    final String language;
+
+    // Включённые единицы в порядке config.yml.
+    final Map<String, SpeedUnit> units;
+    final String defaultUnitId;
+    final String defaultTopSpeedDisplayUnit;
+    // Id единиц в порядке config.yml и их номера: переключение по кругу без копирования и поиска по списку.
+    private final String[] unitIds;
+    private final Map<String, Integer> unitOrder;
+    final PrefixIndex unitIndex;
+
+    // Имя каждой подкоманды по Subcommand.ordinal() и обратная таблица имя -> подкоманда.
+    private final String[] subcommandNames;
+    private final Map<String, Subcommand> subcommands;
+    final PrefixIndex subcommandIndex;
+    final int topSpeedPageSize;
+
+    final boolean sampleAllPlayers;
+    final int sampleIntervalTicks;
+    final int recordingIntervalTicks;
+    final int recordingDurationTicks;
+    final SamplingPolicy defaultSamplingPolicy;
+    final Map<String, SamplingPolicy> worldPolicies;
+
+    final boolean adaptiveHud;
+    final double hudMinChange;
+    final int hudSteadyIntervalTicks;
+    final double mainThreadBudgetMs;
+    final int maxBackoff;
+
+    final long statsLogIntervalSeconds;
+    final boolean watchFiles;
+
+    final MessageTemplates messages;
+    // Текст HUD и названия единиц, из которых собран hudFormat; по ним видно, нужно ли его менять при перезагрузке.
+    final String hudDisplay;
+    final Map<String, String> unitNames;
+    final HudFormatCache hudFormat;
+
+    // Аргументы и готовые строки справки по метке команды (/speedhud, /sh, ...). Заполняются при
+    // первом обращении, но зависят только от этого снимка, поэтому снимок остаётся неизменным по смыслу.
+    private final Map<String, String[]> helpArguments = new ConcurrentHashMap<>();
+    private final Map<String, String[]> helpLines = new ConcurrentHashMap<>();
+
+    /**
+     * Разбирает config.yml и секцию messages языкового файла. Предупреждения о некорректных
+     * значениях пишутся в logger. Можно вызывать из любого потока.
+     */
+    @SuppressWarnings("LoggerStringConcat")
+    Settings(ConfigurationSection config, ConfigurationSection languageFile, Logger logger) {
+        language = lowerCase(config.getString("language", "ru"), "ru");
+        String defaultUnit = lowerCase(config.getString("default_unit", "kmh"), "kmh");
+        String defaultTopUnit = lowerCase(config.getString("default_topspeed_display_unit", "kmh"), "kmh");
+
+        Map<String, SpeedUnit> loadedUnits = new LinkedHashMap<>();
+        ConfigurationSection unitsSection = config.getConfigurationSection("speed_units");
+        if (unitsSection != null) {
+            for (String unitId : unitsSection.getKeys(false)) {
+                ConfigurationSection unitConfig = unitsSection.getConfigurationSection(unitId);
+                if (unitConfig == null || !unitConfig.getBoolean("enabled", true)) {
+                    continue;
+                }
+                double multiplier = unitConfig.getDouble("multiplier", 1.0);
+                String displayNameKey = unitConfig.getString("display_name_key", "unit_" + unitId);
+                double green = unitConfig.getDouble("color_thresholds.green", 0.0);
+                double yellow = unitConfig.getDouble("color_thresholds.yellow", 0.0);
+                loadedUnits.put(unitId, new SpeedUnit(unitId, multiplier, displayNameKey, green, yellow));
+            }
+        }
+        if (loadedUnits.isEmpty()) {
+            logger.warning("Единицы измерения скорости не определены в config.yml или некорректны. Использую стандартные.");
+            loadedUnits.put("ms", new SpeedUnit("ms", 1.0, "unit_ms", 2.8, 5.5));
+            loadedUnits.put("kmh", new SpeedUnit("kmh", 3.6, "unit_kmh", 10.0, 20.0));
+            defaultUnit = "kmh";
+            defaultTopUnit = "kmh";
+        }
+        if (!loadedUnits.containsKey(defaultUnit)) {
+            logger.warning("Единица по умолчанию '" + defaultUnit + "' не найдена среди определенных/включенных единиц. Устанавливаю первую доступную.");
+            defaultUnit = loadedUnits.keySet().iterator().next();
+        }
+        if (!loadedUnits.containsKey(defaultTopUnit)) {
+            logger.warning("Единица по умолчанию для отображения топа '" + defaultTopUnit + "' не найдена среди определенных/включенных единиц. Устанавливаю первую доступную.");
+            defaultTopUnit = loadedUnits.keySet().iterator().next();
+        }
+        units = Collections.unmodifiableMap(loadedUnits);
+        defaultUnitId = defaultUnit;
+        defaultTopSpeedDisplayUnit = defaultTopUnit;
+        unitIds = units.keySet().toArray(new String[0]);
+        Map<String, Integer> order = new HashMap<>();
+        unitIndex = new PrefixIndex();
+        for (int i = 0; i < unitIds.length; i++) {
+            order.put(unitIds[i], i);
+            unitIndex.add(unitIds[i]);
+        }
+        unitOrder = Collections.unmodifiableMap(order);
+
+        Subcommand[] all = Subcommand.values();
+        subcommandNames = new String[all.length];
+        Map<String, Subcommand> lookup = new HashMap<>();
+        subcommandIndex = new PrefixIndex();
+        for (Subcommand subcommand : all) {
+            String name = lowerCase(config.getString("subcommands." + subcommand.configKey, subcommand.defaultName), subcommand.defaultName);
+            subcommandNames[subcommand.ordinal()] = name;
+            Subcommand previous = lookup.putIfAbsent(name, subcommand);
+            if (previous != null) {
+                logger.warning("Имя подкоманды '" + name + "' уже занято подкомандой " + previous.configKey + ", подкоманда " + subcommand.configKey + " недоступна.");
+            } else {
+                subcommandIndex.add(name);
+            }
+        }
+        subcommands = Collections.unmodifiableMap(lookup);
+        topSpeedPageSize = Math.max(1, config.getInt("topspeed_page_size", 10));
+
+        sampleAllPlayers = "all".equalsIgnoreCase(config.getString("sampling.mode", "active"));
+        sampleIntervalTicks = Math.max(1, config.getInt("sampling.interval_ticks", 4));
+        recordingIntervalTicks = Math.max(1, config.getInt("recording.interval_ticks",
+                config.getInt("sampling.recording_interval_ticks", 1)));
+        recordingDurationTicks = Math.max(1, config.getInt("recording.duration_seconds", 10)) * SpeedSampleState.TICKS_PER_SECOND;
+        defaultSamplingPolicy = SamplingPolicy.fromConfig(config.getConfigurationSection("sampling.policy"), SamplingPolicy.DEFAULT);
+        Map<String, SamplingPolicy> policies = new HashMap<>();
+        ConfigurationSection worldsSection = config.getConfigurationSection("sampling.worlds");
+        if (worldsSection != null) {
+            for (String worldName : worldsSection.getKeys(false)) {
+                policies.put(worldName, SamplingPolicy.fromConfig(worldsSection.getConfigurationSection(worldName), defaultSamplingPolicy));
+            }
+        }
+        worldPolicies = Collections.unmodifiableMap(policies);
+
+        adaptiveHud = config.getBoolean("hud.adaptive.enabled", true);
+        hudMinChange = Math.max(0.0, config.getDouble("hud.adaptive.min_change", 1.0));
+        hudSteadyIntervalTicks = Math.max(1, config.getInt("hud.adaptive.steady_interval_ticks", 20));
+        double budgetMs = config.getDouble("hud.adaptive.main_thread_budget_ms", DEFAULT_MAIN_THREAD_BUDGET_MS);
+        if (!(budgetMs > 0.0) || budgetMs >= MAX_MAIN_THREAD_BUDGET_MS) {
+            logger.warning("hud.adaptive.main_thread_budget_ms должен быть больше 0 и меньше "
+                    + MAX_MAIN_THREAD_BUDGET_MS + " мс (длины тика), использую " + DEFAULT_MAIN_THREAD_BUDGET_MS + ".");
+            budgetMs = DEFAULT_MAIN_THREAD_BUDGET_MS;
+        }
+        mainThreadBudgetMs = budgetMs;
+        maxBackoff = config.getInt("hud.adaptive.max_backoff", 2);
+
+        statsLogIntervalSeconds = config.getLong("stats.log_interval_seconds", 0L);
+        watchFiles = config.getBoolean("reload.watch_files", false);
+
+        messages = MessageTemplates.compile(languageFile, logger);
+        hudDisplay = messages.render(MessageKey.HUD_DISPLAY);
+        Map<String, String> names = new HashMap<>();
+        for (SpeedUnit unit : units.values()) {
+            if (!messages.has(unit.displayNameKey)) {
+                logger.warning("В языковом файле нет названия единицы '" + unit.displayNameKey + "'.");
+            }
+            names.put(unit.id, messages.text(unit.displayNameKey));
+        }
+        unitNames = Collections.unmodifiableMap(names);
+        hudFormat = new HudFormatCache(hudDisplay, unitNames);
+    }
+
+    /**
+     * Единица с данным id или единица по умолчанию, если такой нет.
+     */
+    SpeedUnit unit(String unitId) {
+        SpeedUnit unit = unitId == null ? null : units.get(unitId);
+        return unit != null ? unit : units.get(defaultUnitId);
+    }
+
+    /**
+     * Следующая единица после unitId в порядке config.yml; первая, если unitId не найден.
+     */
+    String nextUnitId(String unitId) {
+        Integer index = unitId == null ? null : unitOrder.get(unitId);
+        return unitIds[index == null ? 0 : (index + 1) % unitIds.length];
+    }
+
+    /**
+     * Подкоманда с таким именем без учёта регистра или null.
+     */
+    Subcommand subcommand(String name) {
+        return subcommands.get(name.toLowerCase());
+    }
+
+    String name(Subcommand subcommand) {
+        return subcommandNames[subcommand.ordinal()];
+    }
+
+    /**
+     * Аргументы для сообщений с подстановками {@link MessageKey.Help#PARAMETERS}, в том же порядке.
+     * Массив общий для всех вызовов с этой меткой и не должен меняться.
+     */
+    String[] helpArguments(String label) {
+        return helpArguments.computeIfAbsent(label, key -> {
+            String[] arguments = new String[subcommandNames.length + 2];
+            arguments[0] = key;
+            System.arraycopy(subcommandNames, 0, arguments, 1, subcommandNames.length);
+            arguments[arguments.length - 1] = String.valueOf(recordingDurationTicks / SpeedSampleState.TICKS_PER_SECOND);
+            return arguments;
+        });
+    }
+
+    /**
+     * Строки /speedhud help для этой метки, отрендеренные один раз на снимок.
+     */
+    String[] helpLines(String label) {
+        return helpLines.computeIfAbsent(label, key -> {
+            String[] arguments = helpArguments(key);
+            String[] lines = new String[HELP_LINES.length];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = messages.render(HELP_LINES[i], arguments);
+            }
+            return lines;
+        });
+    }
+
+    SamplingPolicy policyFor(String worldName) {
+        if (worldName == null || worldPolicies.isEmpty()) {
+            return defaultSamplingPolicy;
+        }
+        return worldPolicies.getOrDefault(worldName, defaultSamplingPolicy);
+    }
+
+    private static String lowerCase(String value, String defaultValue) {
+        return (value == null ? defaultValue : value).toLowerCase();
+    }
+}
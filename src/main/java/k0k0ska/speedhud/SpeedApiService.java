@@ -0,0 +1,119 @@
+package k0k0ska.speedhud;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import k0k0ska.speedhud.api.SpeedHudApi;
+import k0k0ska.speedhud.api.SpeedSnapshot;
+import k0k0ska.speedhud.api.SpeedThresholdListener;
+import k0k0ska.speedhud.api.Subscription;
+
+/**
+ * Реализация {@link SpeedHudApi}. Рабочий поток после каждого замера публикует
+ * новый неизменяемый снимок заменой значения в карте, поэтому читатели видят
+ * либо старый, либо новый снимок целиком, без блокировок.
+ * Пороги проверяются там же, подписчикам не нужно опрашивать скорость каждый тик.
+ */
+final class SpeedApiService implements SpeedHudApi {
+
+    private final class ThresholdSubscription implements Subscription {
+        final double thresholdMs;
+        final SpeedThresholdListener listener;
+        final Set<UUID> above = ConcurrentHashMap.newKeySet();
+
+        ThresholdSubscription(double thresholdMs, SpeedThresholdListener listener) {
+            this.thresholdMs = thresholdMs;
+            this.listener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            subscriptions.remove(this);
+        }
+    }
+
+    private final Logger logger;
+    private final Map<UUID, SpeedSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final List<ThresholdSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    SpeedApiService(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public SpeedSnapshot getSnapshot(UUID playerId) {
+        return snapshots.get(playerId);
+    }
+
+    @Override
+    public double getCurrentSpeed(UUID playerId) {
+        SpeedSnapshot snapshot = snapshots.get(playerId);
+        return snapshot == null ? 0.0 : snapshot.getCurrentSpeed();
+    }
+
+    @Override
+    public double getAverageSpeed(UUID playerId) {
+        SpeedSnapshot snapshot = snapshots.get(playerId);
+        return snapshot == null ? 0.0 : snapshot.getAverageSpeed();
+    }
+
+    @Override
+    public double getPersonalBest(UUID playerId) {
+        SpeedSnapshot snapshot = snapshots.get(playerId);
+        return snapshot == null ? Double.NaN : snapshot.getPersonalBest();
+    }
+
+    @Override
+    public Subscription subscribe(double thresholdMs, SpeedThresholdListener listener) {
+        ThresholdSubscription subscription = new ThresholdSubscription(thresholdMs, listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Публикует замер. Вызывается только рабочим потоком.
+     */
+    void publish(UUID playerId, double currentSpeed, double averageSpeed, long tick) {
+        SpeedSnapshot snapshot = snapshots.compute(playerId, (id, previous) -> new SpeedSnapshot(id, currentSpeed, averageSpeed,
+                previous == null ? Double.NaN : previous.getPersonalBest(), tick));
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        for (ThresholdSubscription subscription : subscriptions) {
+            boolean above = averageSpeed >= subscription.thresholdMs;
+            boolean changed = above ? subscription.above.add(playerId) : subscription.above.remove(playerId);
+            if (!changed) {
+                continue;
+            }
+            try {
+                subscription.listener.onThresholdCrossed(snapshot, subscription.thresholdMs, above);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Ошибка в подписчике на порог скорости " + subscription.thresholdMs + " м/с.", e);
+            }
+        }
+    }
+
+    void setPersonalBest(UUID playerId, double personalBest) {
+        snapshots.compute(playerId, (id, previous) -> previous == null
+                ? new SpeedSnapshot(id, 0.0, 0.0, personalBest, 0L)
+                : new SpeedSnapshot(id, previous.getCurrentSpeed(), previous.getAverageSpeed(), personalBest, previous.getTick()));
+    }
+
+    void forget(UUID playerId) {
+        snapshots.remove(playerId);
+        for (ThresholdSubscription subscription : subscriptions) {
+            subscription.above.remove(playerId);
+        }
+    }
+
+    void clear() {
+        snapshots.clear();
+        subscriptions.clear();
+    }
+}
@@ -4,16 +4,25 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.text.DecimalFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
@@ -22,540 +31,1066 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.command.PluginCommand;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.vehicle.VehicleEnterEvent;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
-
-import net.md_5.bungee.api.ChatColor;
-import net.md_5.bungee.api.ChatMessageType;
-import net.md_5.bungee.api.chat.TextComponent;
-
-public class SpeedDisplayHUD extends JavaPlugin {
-
-    private File topspeedFile;
-    private YamlConfiguration topspeedConfig;
-    private final Set<String> recordingPlayers = new HashSet<>();
-    private final Map<String, Double> currentMaxSpeeds = new HashMap<>();
-
-    private static final DecimalFormat DF = new DecimalFormat("0.00");
-    private final Set<Player> enabledPlayers = new HashSet<>();
-    private final Map<Player, String> playerSelectedUnits = new HashMap<>(); 
-    private final Map<Player, String> playerSelectedTopUnits = new HashMap<>(); 
-
-    private static class SpeedUnit {
-        @SuppressWarnings("unused")
-        String id;
-        double multiplier;
-        String displayNameKey;
-        double greenThreshold;
-        double yellowThreshold;
-
-        public SpeedUnit(String id, double multiplier, String displayNameKey, double greenThreshold, double yellowThreshold) {
-            this.id = id;
-            this.multiplier = multiplier;
-            this.displayNameKey = displayNameKey;
-            this.greenThreshold = greenThreshold;
-            this.yellowThreshold = yellowThreshold;
+import org.bukkit.scheduler.BukkitTask;
+
+import k0k0ska.speedhud.api.SpeedHudApi;
+
+
+public class SpeedDisplayHUD extends JavaPlugin implements Listener {
+
+    private TopSpeedStorage topSpeedStore;
+    private SessionStore sessions;
+    private final Set<PlayerSession> recorders = new LinkedHashSet<>();
+
+    // Текущий снимок настроек; при перезагрузке подменяется целиком в основном потоке.
+    private volatile Settings settings;
+    // Разбор файлов настроек при перезагрузке; один поток, чтобы снимки применялись в порядке запросов.
+    private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SpeedHUD-Reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ConfigWatcher configWatcher;
+
+    // Скорость усредняется за последнюю секунду независимо от частоты замеров.
+    private static final int HISTORY_WINDOW_TICKS = 20;
+    private static final String DEFAULT_TRANSFER_FILE = "topspeed-export.yml";
+    private static final String UNKNOWN_COMMAND_PHASE = PluginMetrics.PHASE_COMMAND_PREFIX + "unknown";
+    private static final int TAB_COMPLETE_LIMIT = 50;
+    private static final int NAME_COMPLETION_CACHE_SIZE = 64;
+    // Окна /speedhud history в порядке SpeedStatsStore.WINDOW_*: аргумент команды, название в языковом файле, формат времени периода.
+    private static final String[] HISTORY_WINDOWS = {"minutes", "hours", "days"};
+    private static final String[] HISTORY_WINDOW_NAMES = {"history_window_minutes", "history_window_hours", "history_window_days"};
+    private static final DateTimeFormatter[] HISTORY_TIME_FORMATS = {
+            DateTimeFormatter.ofPattern("HH:mm"), DateTimeFormatter.ofPattern("dd.MM HH:00"), DateTimeFormatter.ofPattern("dd.MM.yyyy")
+    };
+    private static final int HISTORY_PERIOD_LINES = 10;
+
+    // Игроки, которых нужно замерять для HUD. Стоящие на месте временно исключаются.
+    private final SamplingScheduler<PlayerSession> samplingScheduler = new SamplingScheduler<>(4);
+
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final SpeedApiService api = new SpeedApiService(getLogger());
+    private final SpeedWorker speedWorker = new SpeedWorker(metrics, api);
+    private final HudRateController hudRate = new HudRateController();
+    private final SpeedTickTask speedTask = new SpeedTickTask(new SpeedTickTask.Host() {
+        @Override
+        public SamplingPolicy policyFor(World world) {
+            return settings.policyFor(world == null ? null : world.getName());
         }
-    }
-    
-    private final Map<String, SpeedUnit> availableUnits = new LinkedHashMap<>();
-    private String defaultUnitId;
-    private String defaultTopSpeedDisplayUnit;
 
-    private String cmdEnable, cmdDisable, cmdUnit, cmdReload, cmdHelp, cmdStartRecordSpeed, cmdTopSpeed, cmdTopToggleUnit;
-    private final Map<UUID, Location> lastLocations = new HashMap<>();
+        @Override
+        public SpeedUnit hudUnitOf(PlayerSession session) {
+            return session.hudEnabled ? settings.unit(unitIdOf(session)) : null;
+        }
 
-    private FileConfiguration messagesConfig;
-    private String currentLanguage;
+        @Override
+        public PlayerSession session(UUID playerId) {
+            return sessions.get(playerId);
+        }
 
-    private final Map<UUID, List<Double>> recentSpeeds = new HashMap<>();
-    private static final int MAX_HISTORY = 5;
+        @Override
+        public void finishRecording(PlayerSession session) {
+            SpeedDisplayHUD.this.finishRecording(session, true);
+        }
+    }, samplingScheduler, recorders, speedWorker, metrics, hudRate, getLogger());
+    private BukkitTask statsLogTask;
+    // null - статистика по времени выключена.
+    private SpeedStatsStore speedStats;
+    // Последние ответы хранилища на подсказки имён /speedhud history по началу имени в нижнем регистре:
+    // подсказки синхронны, а SQLite отвечает позже. Только основной поток.
+    private final Map<String, List<String>> nameCompletions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > NAME_COMPLETION_CACHE_SIZE;
+        }
+    };
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
-        loadConfigValues();
-        loadMessages();
+        applySettings(loadInitialSettings());
         setupTopSpeedFile();
+        setupSpeedStats();
+        sessions = new SessionStore(getConfig().getInt("sessions.remembered_preferences", 10000));
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            loadPersonalBest(sessions.open(player));
+            if (speedStats != null) {
+                speedStats.track(player.getUniqueId(), player.getName());
+            }
+        }
+        getServer().getServicesManager().register(SpeedHudApi.class, api, this, ServicePriority.Normal);
 
         PluginCommand cmd = getCommand("speedhud");
         if (cmd != null) {
             cmd.setExecutor(this);
+            cmd.setTabCompleter(this);
         } else {
-            getLogger().severe(getMessage("command_not_found_in_yml", null));
+            getLogger().severe(settings.messages.render(MessageKey.COMMAND_NOT_FOUND_IN_YML));
         }
 
-        getLogger().info(getMessage("plugin_enabled", null));
+        getServer().getPluginManager().registerEvents(this, this);
+        rebuildSampling();
+
+        getLogger().info(settings.messages.render(MessageKey.PLUGIN_ENABLED));
         startSpeedTask();
+        scheduleStatsLog();
+        updateConfigWatcher();
     }
 
     @Override
     public void onDisable() {
-        getLogger().info(getMessage("plugin_disabled", null));
-    }
-
-    private void setupTopSpeedFile() {
-        topspeedFile = new File(getDataFolder(), "topspeed.yml");
-        if (!topspeedFile.exists()) {
-            try {
-                topspeedFile.createNewFile();
-            } catch (IOException e) {
-                getLogger().severe(getMessage("topspeed_file_creation_failed", null));
-            }
+        getServer().getServicesManager().unregisterAll(this);
+        if (configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
         }
-        topspeedConfig = YamlConfiguration.loadConfiguration(topspeedFile);
-    }
-
-    @SuppressWarnings("LoggerStringConcat")
-    private void loadConfigValues() {
-        reloadConfig();
-        String langValue = getConfig().getString("language", "ru");
-        currentLanguage = (langValue == null ? "ru" : langValue).toLowerCase();
-        String defaultUnitRaw = getConfig().getString("default_unit", "kmh");
-        defaultUnitId = (defaultUnitRaw == null ? "kmh" : defaultUnitRaw).toLowerCase();
-        String defaultTopSpeedDisplayUnitRaw = getConfig().getString("default_topspeed_display_unit", "kmh");
-        defaultTopSpeedDisplayUnit = (defaultTopSpeedDisplayUnitRaw == null ? "kmh" : defaultTopSpeedDisplayUnitRaw).toLowerCase();
-
-
-        availableUnits.clear();
-        ConfigurationSection unitsSection = getConfig().getConfigurationSection("speed_units");
-        if (unitsSection != null) {
-            for (String unitId : unitsSection.getKeys(false)) {
-                ConfigurationSection unitConfig = unitsSection.getConfigurationSection(unitId);
-                if (unitConfig != null) {
-                    boolean enabled = unitConfig.getBoolean("enabled", true);
-                    if (!enabled) {
-                        continue;
-                    }
-
-                    double multiplier = unitConfig.getDouble("multiplier", 1.0);
-                    String displayNameKey = unitConfig.getString("display_name_key", "unit_" + unitId);
-                    double green = unitConfig.getDouble("color_thresholds.green", 0.0);
-                    double yellow = unitConfig.getDouble("color_thresholds.yellow", 0.0);
-                    availableUnits.put(unitId, new SpeedUnit(unitId, multiplier, displayNameKey, green, yellow));
+        // Наблюдатель уже остановлен и больше не ставит перезагрузки; начатая дочитывается, но не применяется.
+        reloadExecutor.shutdown();
+        try {
+            reloadExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Незаконченные записи забираются из рабочего потока до его остановки и сохраняются до закрытия хранилища.
+        Map<PlayerSession, CompletableFuture<RecordingEngine.Run>> activeRuns = new LinkedHashMap<>();
+        for (PlayerSession session : recorders) {
+            session.recording = false;
+            activeRuns.put(session, speedWorker.stopRecording(session.playerId));
+        }
+        recorders.clear();
+        speedWorker.shutdown();
+        if (topSpeedStore != null) {
+            for (Map.Entry<PlayerSession, CompletableFuture<RecordingEngine.Run>> entry : activeRuns.entrySet()) {
+                RecordingEngine.Run run = entry.getValue().getNow(null);
+                if (run != null) {
+                    PlayerSession session = entry.getKey();
+                    topSpeedStore.submitRun(session.playerId, session.player.getName(), run, unitIdOf(session));
                 }
             }
         }
-        if (availableUnits.isEmpty()) {
-            getLogger().warning("Единицы измерения скорости не определены в config.yml или некорректны. Использую стандартные.");
-            availableUnits.put("ms", new SpeedUnit("ms", 1.0, "unit_ms", 2.8, 5.5));
-            availableUnits.put("kmh", new SpeedUnit("kmh", 3.6, "unit_kmh", 10.0, 20.0));
-            defaultUnitId = "kmh";
-            defaultTopSpeedDisplayUnit = "kmh";
+        if (speedStats != null) {
+            speedStats.close();
         }
-        if (!availableUnits.containsKey(defaultUnitId)) {
-            getLogger().warning("Единица по умолчанию '" + defaultUnitId + "' не найдена среди определенных/включенных единиц. Устанавливаю первую доступную.");
-            if (!availableUnits.isEmpty()) {
-                defaultUnitId = availableUnits.keySet().iterator().next(); 
-            } else {
-                defaultUnitId = "ms";
-                getLogger().severe("Нет доступных единиц измерения. Переключение не будет работать.");
-            }
+        api.clear();
+        if (sessions != null) {
+            sessions.closeAll();
         }
-        if (!availableUnits.containsKey(defaultTopSpeedDisplayUnit)) {
-            getLogger().warning("Единица по умолчанию для отображения топа '" + defaultTopSpeedDisplayUnit + "' не найдена среди определенных/включенных единиц. Устанавливаю первую доступную.");
-            if (!availableUnits.isEmpty()) {
-                defaultTopSpeedDisplayUnit = availableUnits.keySet().iterator().next(); 
+        if (topSpeedStore != null) {
+            topSpeedStore.close();
+        }
+        if (settings != null) {
+            getLogger().info(settings.messages.render(MessageKey.PLUGIN_DISABLED));
+        }
+    }
+
+    private void setupTopSpeedFile() {
+        TopSpeedStorage store = createLocalTopSpeedStore(settings.messages.render(MessageKey.TOPSPEED_FILE_SAVE_FAILED));
+        if (getConfig().getBoolean("cluster.enabled", false)) {
+            String sharedDirectory = getConfig().getString("cluster.shared_directory", "");
+            if (sharedDirectory == null || sharedDirectory.isEmpty()) {
+                getLogger().warning("cluster.shared_directory не задан, общий рейтинг отключён.");
             } else {
-                defaultTopSpeedDisplayUnit = "ms";
+                String nodeId = getConfig().getString("cluster.node_id", "");
+                if (nodeId == null || nodeId.isEmpty()) {
+                    nodeId = "server-" + getServer().getPort();
+                }
+                store = new ClusterTopSpeedStore(store, new File(sharedDirectory), nodeId, new File(getDataFolder(), "cluster-state.bin"),
+                        getConfig().getLong("cluster.merge_interval_seconds", 10L), this::runOnMainThread, getLogger(), metrics);
             }
         }
+        store.load(getConfig().getLong("storage.compact_interval_seconds", 300L));
+        topSpeedStore = store;
+    }
 
-        String enableStr = getConfig().getString("subcommands.enable", "on");
-        cmdEnable = enableStr == null ? "on" : enableStr.toLowerCase();
+    private void setupSpeedStats() {
+        if (!getConfig().getBoolean("history.enabled", true)) {
+            return;
+        }
+        speedStats = new SpeedStatsStore(getDataFolder(), getLogger(), metrics);
+        speedStats.load(getConfig().getLong("history.flush_interval_seconds", 60L));
+        speedWorker.setSpeedStats(speedStats);
+    }
 
-        String disableStr = getConfig().getString("subcommands.disable", "off");
-        cmdDisable = disableStr == null ? "off" : disableStr.toLowerCase();
+    private TopSpeedStorage createLocalTopSpeedStore(String saveFailedMessage) {
+        String backend = getConfig().getString("storage.backend", "sqlite");
+        if (backend == null || backend.equalsIgnoreCase("sqlite")) {
+            if (SqliteTopSpeedStore.isDriverAvailable()) {
+                return new SqliteTopSpeedStore(getDataFolder(), getLogger(), saveFailedMessage, metrics);
+            }
+            getLogger().warning("Драйвер SQLite не найден, рекорды будут храниться в topspeed.bin.");
+            return new TopSpeedStore(getDataFolder(), getLogger(), saveFailedMessage, metrics);
+        }
 
-        String unitStr = getConfig().getString("subcommands.toggle_unit", "unit");
-        cmdUnit = unitStr == null ? "unit" : unitStr.toLowerCase();
+        if (backend != null && !backend.equalsIgnoreCase("file") && !backend.equalsIgnoreCase("yaml")) {
+            getLogger().warning("Неизвестное хранилище рекордов '" + backend + "', использую file.");
+        }
+        return new TopSpeedStore(getDataFolder(), getLogger(), saveFailedMessage, metrics);
+    }
 
-        String reloadStr = getConfig().getString("subcommands.reload", "reload");
-        cmdReload = reloadStr == null ? "reload" : reloadStr.toLowerCase();
+    private void runOnMainThread(Runnable task) {
+        if (isEnabled()) {
+            Bukkit.getScheduler().runTask(this, task);
+        }
+    }
 
-        String helpStr = getConfig().getString("subcommands.help", "help");
-        cmdHelp = helpStr == null ? "help" : helpStr.toLowerCase();
+    /**
+     * Передаёт результат асинхронной операции в основной поток.
+     */
+    private <T> void onMainThread(CompletableFuture<T> future, Consumer<T> callback) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                getLogger().log(Level.WARNING, "Не удалось выполнить операцию с рекордами скорости.", error);
+                return;
+            }
+            if (Bukkit.isPrimaryThread()) {
+                callback.accept(result);
+            } else if (isEnabled()) {
+                Bukkit.getScheduler().runTask(this, () -> callback.accept(result));
+            }
+        });
+    }
 
-        String startRecordSpeedStr = getConfig().getString("subcommands.startrecordspeed", "startrecordspeed");
-        cmdStartRecordSpeed = startRecordSpeedStr == null ? "startrecordspeed" : startRecordSpeedStr.toLowerCase();
+    /**
+     * То же, что {@link #onMainThread(CompletableFuture, Consumer)}, но ответ отбрасывается, если игрок успел выйти.
+     */
+    private <T> void onMainThread(CommandSender sender, CompletableFuture<T> future, Consumer<T> callback) {
+        onMainThread(future, result -> {
+            if (!(sender instanceof Player player) || player.isOnline()) {
+                callback.accept(result);
+            }
+        });
+    }
 
-        String topSpeedStr = getConfig().getString("subcommands.topspeed", "topspeed");
-        cmdTopSpeed = topSpeedStr == null ? "topspeed" : topSpeedStr.toLowerCase();
+    /**
+     * Настройки при включении плагина. Если config.yml не читается, используется config.yml из jar.
+     */
+    private Settings loadInitialSettings() {
+        try {
+            return readSettings();
+        } catch (IOException | InvalidConfigurationException e) {
+            getLogger().log(Level.SEVERE, "Не удалось прочитать config.yml, использую настройки по умолчанию.", e);
+        }
+        try {
+            YamlConfiguration defaults = loadResource("config.yml");
+            YamlConfiguration config = defaults != null ? defaults : new YamlConfiguration();
+            return new Settings(config, readLanguage(lowerCase(config.getString("language", "ru"), "ru")), getLogger());
+        } catch (IOException | InvalidConfigurationException e) {
+            getLogger().log(Level.SEVERE, "Не удалось прочитать файлы настроек из jar.", e);
+            return new Settings(new YamlConfiguration(), new YamlConfiguration(), getLogger());
+        }
+    }
 
-        String topToggleUnitStr = getConfig().getString("subcommands.toptoggleunit", "toptoggleunit");
-        cmdTopToggleUnit = topToggleUnitStr == null ? "toptoggleunit" : topToggleUnitStr.toLowerCase();
+    /**
+     * Читает config.yml и языковой файл и собирает из них новый снимок настроек.
+     * Состояние плагина не меняет, поэтому при перезагрузке выполняется вне основного потока.
+     */
+    private Settings readSettings() throws IOException, InvalidConfigurationException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.load(new File(getDataFolder(), "config.yml"));
+        YamlConfiguration defaults = loadResource("config.yml");
+        if (defaults != null) {
+            config.setDefaults(defaults);
+        }
+        return new Settings(config, readLanguage(lowerCase(config.getString("language", "ru"), "ru")), getLogger());
     }
 
+    /**
+     * Языковой файл: lang/messages_&lt;язык&gt;.yml из папки плагина, если он там есть, иначе из jar.
+     * Сообщения, которых нет в файле из папки плагина, берутся из jar.
+     */
     @SuppressWarnings("LoggerStringConcat")
-    private void loadMessages() {
-        String fileName = "lang/messages_" + currentLanguage + ".yml";
-        InputStream stream = getResource(fileName);
-        if (stream == null) {
+    private YamlConfiguration readLanguage(String language) throws IOException, InvalidConfigurationException {
+        String fileName = "lang/messages_" + language + ".yml";
+        YamlConfiguration bundled = loadResource(fileName);
+        if (bundled == null) {
             getLogger().warning("Языковой файл " + fileName + " не найден! Использую английский по умолчанию (messages_en.yml).");
-            stream = getResource("lang/messages_en.yml");
-            if (stream == null) {
+            bundled = loadResource("lang/messages_en.yml");
+            if (bundled == null) {
                 getLogger().severe("Английский языковой файл (messages_en.yml) также не найден! Сообщения будут отсутствовать.");
-                messagesConfig = new YamlConfiguration();
-                return;
+                bundled = new YamlConfiguration();
             }
         }
-        messagesConfig = YamlConfiguration.loadConfiguration(new InputStreamReader(stream));
+        File custom = new File(getDataFolder(), fileName);
+        if (!custom.isFile()) {
+            return bundled;
+        }
+        YamlConfiguration languageFile = new YamlConfiguration();
+        languageFile.load(custom);
+        languageFile.setDefaults(bundled);
+        languageFile.options().copyDefaults(true);
+        return languageFile;
+    }
+
+    private YamlConfiguration loadResource(String name) throws IOException, InvalidConfigurationException {
+        InputStream stream = getResource(name);
+        if (stream == null) {
+            return null;
+        }
+        YamlConfiguration config = new YamlConfiguration();
+        try (InputStreamReader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            config.load(reader);
+        }
+        return config;
     }
 
-    private String getMessage(String path, Map<String, String> placeholders) {
-        String message = messagesConfig.getString("messages." + path, path);
-        
-        String prefix = messagesConfig.getString("command_prefix", "SpeedHUD");
-        
-        if (message == null) { 
-            message = path;
+    private static String lowerCase(String value, String defaultValue) {
+        return (value == null ? defaultValue : value).toLowerCase();
+    }
+
+    /**
+     * Публикует снимок настроек и перестраивает только то, что от них изменилось. Только основной поток.
+     */
+    private void applySettings(Settings next) {
+        Settings previous = settings;
+        settings = next;
+
+        speedTask.configure(next.sampleIntervalTicks, next.recordingIntervalTicks);
+        if (samplingScheduler.bucketCount() != next.sampleIntervalTicks) {
+            samplingScheduler.resize(next.sampleIntervalTicks);
+        }
+        // Рабочий поток сбрасывает историю замеров, только если изменился её размер.
+        speedWorker.configure(SpeedSampleState.historySize(HISTORY_WINDOW_TICKS, next.sampleIntervalTicks),
+                SpeedSampleState.historySize(HISTORY_WINDOW_TICKS, next.recordingIntervalTicks), !next.sampleAllPlayers);
+        speedWorker.configureHud(next.adaptiveHud, next.hudMinChange, next.hudSteadyIntervalTicks);
+        hudRate.configure(next.adaptiveHud, next.mainThreadBudgetMs, next.maxBackoff);
+        if (previous == null || !previous.hudDisplay.equals(next.hudDisplay) || !previous.unitNames.equals(next.unitNames)) {
+            speedWorker.setHudFormat(next.hudFormat);
+        }
+
+        if (previous == null) {
+            return;
+        }
+        if (previous.sampleAllPlayers != next.sampleAllPlayers) {
+            rebuildSampling();
+        }
+        if (previous.statsLogIntervalSeconds != next.statsLogIntervalSeconds) {
+            scheduleStatsLog();
         }
-        
-        message = message.replace("%prefix%", prefix);
+        if (previous.watchFiles != next.watchFiles) {
+            updateConfigWatcher();
+        }
+    }
 
-        if (placeholders != null) {
-            for (Map.Entry<String, String> entry : placeholders.entrySet()) {
-                message = message.replace("%" + entry.getKey() + "%", entry.getValue());
+    /**
+     * Перечитывает настройки вне основного потока и применяет их на следующем тике.
+     * При ошибке в файлах остаются прежние настройки. sender == null - перезагрузка после правки файлов.
+     */
+    private void reloadSettings(CommandSender sender) {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return readSettings();
+            } catch (IOException | InvalidConfigurationException e) {
+                throw new CompletionException(e);
+            }
+        }, reloadExecutor).whenComplete((next, error) -> runOnMainThread(() -> {
+            boolean notify = sender != null && (!(sender instanceof Player player) || player.isOnline());
+            if (error != null) {
+                getLogger().log(Level.WARNING, "Не удалось перезагрузить настройки, остаются прежние.", error);
+                if (notify) {
+                    sender.sendMessage(settings.messages.render(MessageKey.CONFIG_RELOAD_FAILED));
+                }
+                return;
             }
+            applySettings(next);
+            if (notify) {
+                sender.sendMessage(next.messages.render(MessageKey.CONFIG_UPDATED));
+            } else if (sender == null) {
+                getLogger().info("Настройки перезагружены после изменения файлов.");
+            }
+        }));
+    }
+
+    private void updateConfigWatcher() {
+        boolean watch = settings.watchFiles;
+        if (watch && configWatcher == null) {
+            configWatcher = new ConfigWatcher(getDataFolder(), () -> reloadSettings(null), getLogger());
+            configWatcher.start();
+        } else if (!watch && configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
+        }
+    }
+
+    /**
+     * Пересобирает набор замеряемых игроков после загрузки настроек.
+     */
+    private void rebuildSampling() {
+        samplingScheduler.clear();
+        for (PlayerSession session : sessions.all()) {
+            session.idle = false;
+            updateSampling(session);
         }
-        return ChatColor.translateAlternateColorCodes('&', message);
+    }
+
+    private String unitIdOf(PlayerSession session) {
+        String unitId = session.unitId;
+        return unitId != null ? unitId : settings.defaultUnitId;
+    }
+
+    private String topUnitIdOf(PlayerSession session) {
+        String unitId = session.topUnitId;
+        return unitId != null ? unitId : settings.defaultTopSpeedDisplayUnit;
     }
 
     private void startSpeedTask() {
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                for (Player player : Bukkit.getOnlinePlayers()) {
-                    String name = player.getName();
-                    UUID uuid = player.getUniqueId();
-                    Location current = player.getLocation();
-                    Location last = lastLocations.get(uuid);
-
-                    double speed = 0.0;
-
-                    if (last != null && current != null) {
-                        World lastWorld = last.getWorld();
-                        World currentWorld = current.getWorld();
-                        if (lastWorld != null && currentWorld != null && currentWorld.equals(lastWorld)) {
-                            double distance = current.distance(last);
-                            speed = distance * 5; 
-                        }
-                    }
+        Bukkit.getScheduler().runTaskTimer(this, speedTask, 0L, 1L);
+    }
 
-                    List<Double> history = recentSpeeds.computeIfAbsent(uuid, k -> new ArrayList<>());
-                    history.add(speed);
-                    if (history.size() > MAX_HISTORY) history.remove(0);
+    /**
+     * Заканчивает запись игрока и сохраняет её, если она побила личный рекорд.
+     * Сессия уже должна быть убрана из recorders.
+     */
+    private void finishRecording(PlayerSession session, boolean notify) {
+        session.recording = false;
+        Player player = session.player;
+        String name = player.getName();
+        String unitIdToSave = unitIdOf(session);
+
+        onMainThread(speedWorker.stopRecording(session.playerId), run -> {
+            if (run == null) {
+                return;
+            }
+            CompletableFuture<TopSpeedStorage.RunResult> saved = topSpeedStore.submitRun(session.playerId, name, run, unitIdToSave);
+            MessageTemplates messages = settings.messages;
+            SpeedUnit selectedUnit = settings.unit(unitIdToSave);
+            String unitName = messages.text(selectedUnit.displayNameKey);
+            String speed = String.format("%.2f", run.peakSpeedMs * selectedUnit.multiplier);
+            String average = String.format("%.2f", run.averageSpeedMs * selectedUnit.multiplier);
+            String seconds = String.format("%.1f", run.durationTicks / (double) SpeedSampleState.TICKS_PER_SECOND);
+
+            onMainThread(player, saved, result -> {
+                api.setPersonalBest(session.playerId, result.bestSpeedMs);
+                if (!notify) {
+                    return;
+                }
+                player.sendMessage(messages.render(MessageKey.START_RECORD_FINISHED, speed, average, seconds, unitName));
+                if (result.personalBest) {
+                    player.sendMessage(messages.render(MessageKey.START_RECORD_PERSONAL_BEST));
+                } else {
+                    player.sendMessage(messages.render(MessageKey.START_RECORD_NOT_PERSONAL_BEST,
+                            String.format("%.2f", result.bestSpeedMs * selectedUnit.multiplier), unitName));
+                }
+            });
+        });
+    }
 
-                    double avgSpeed = history.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+    /**
+     * Загружает личный рекорд вошедшего игрока в снимок API.
+     */
+    private void loadPersonalBest(PlayerSession session) {
+        onMainThread(session.player, topSpeedStore.personalBest(session.player.getName()), best -> {
+            if (best != null) {
+                api.setPersonalBest(session.playerId, best.speedMs);
+            }
+        });
+    }
 
-                    if (current != null) {
-                        lastLocations.put(uuid, current.clone());
-                    }
+    /**
+     * Добавляет игрока в планировщик замеров или убирает из него в зависимости от режима
+     * и того, включён ли у него HUD.
+     */
+    private void updateSampling(PlayerSession session) {
+        boolean wanted = settings.sampleAllPlayers || session.hudEnabled;
+        if (!wanted) {
+            samplingScheduler.remove(session);
+            session.idle = false;
+            return;
+        }
+        if (!session.idle && samplingScheduler.add(session)) {
+            speedWorker.resetSampler(session.playerId);
+        }
+    }
 
-                    if (recordingPlayers.contains(name)) {
-                        double prev = currentMaxSpeeds.getOrDefault(name, 0.0);
-                        currentMaxSpeeds.put(name, Math.max(prev, avgSpeed));
-                    }
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        PlayerSession session = sessions.open(event.getPlayer());
+        loadPersonalBest(session);
+        if (speedStats != null) {
+            speedStats.track(session.playerId, event.getPlayer().getName());
+        }
+        if (settings.sampleAllPlayers) {
+            updateSampling(session);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        PlayerSession session = sessions.close(event.getPlayer().getUniqueId());
+        if (session != null) {
+            samplingScheduler.remove(session);
+            if (recorders.remove(session)) {
+                // Незаконченная запись сохраняется с фактической длительностью.
+                finishRecording(session, false);
+            }
+            speedWorker.forget(session.playerId);
+            if (speedStats != null) {
+                speedStats.untrack(session.playerId);
+            }
+        }
+    }
 
-                    if (!enabledPlayers.contains(player)) continue;
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        // Телепорт (в том числе эндер-жемчуг) не должен давать скачок скорости.
+        speedWorker.forgetPosition(event.getPlayer().getUniqueId());
+        wake(sessions.get(event.getPlayer().getUniqueId()));
+    }
 
-                    String currentUnitId = playerSelectedUnits.getOrDefault(player, defaultUnitId);
-                    SpeedUnit selectedUnit = availableUnits.getOrDefault(currentUnitId, availableUnits.get(defaultUnitId));
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        speedWorker.forgetPosition(event.getPlayer().getUniqueId());
+    }
 
-                    double displaySpeed = avgSpeed * selectedUnit.multiplier;
-                    String unitDisplayName = getMessage(selectedUnit.displayNameKey, null);
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location to = event.getTo();
+        if (to == null || to.getWorld() == event.getFrom().getWorld() && to.distanceSquared(event.getFrom()) == 0.0) {
+            return;
+        }
+        wake(sessions.get(event.getPlayer().getUniqueId()));
+    }
 
-                    ChatColor color;
-                    if (displaySpeed < selectedUnit.greenThreshold) {
-                        color = ChatColor.GREEN;
-                    } else if (displaySpeed < selectedUnit.yellowThreshold) {
-                        color = ChatColor.YELLOW;
-                    } else {
-                        color = ChatColor.RED;
-                    }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleEnter(VehicleEnterEvent event) {
+        // Пассажир не получает PlayerMoveEvent, поэтому будим его при посадке; в транспорте он не паркуется.
+        if (event.getEntered() instanceof Player) {
+            wake(sessions.get(event.getEntered().getUniqueId()));
+        }
+    }
+
+    /**
+     * Возвращает припаркованного стоящего игрока в планировщик замеров.
+     */
+    private void wake(PlayerSession session) {
+        if (session != null && session.idle) {
+            session.idle = false;
+            samplingScheduler.add(session);
+        }
+    }
 
-                    String message = getMessage("hud_display", null) + color + DF.format(displaySpeed) + " " + unitDisplayName;
-                    player.spigot().sendMessage(ChatMessageType.ACTION_BAR, new TextComponent(message));
+    @SuppressWarnings("LoggerStringConcat")
+    private void scheduleStatsLog() {
+        if (statsLogTask != null) {
+            statsLogTask.cancel();
+            statsLogTask = null;
+        }
+        long intervalSeconds = settings.statsLogIntervalSeconds;
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        long period = intervalSeconds * 20L;
+        statsLogTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                StringBuilder line = new StringBuilder("Статистика:");
+                for (Map.Entry<String, LatencyHistogram> phase : metrics.phases().entrySet()) {
+                    line.append(' ').append(phase.getKey()).append(" p99=")
+                            .append(formatMicros(phase.getValue().percentile(99.0))).append("мкс");
                 }
+                line.append(", замеров=").append(metrics.playersSampled.sum())
+                        .append(", отправлено=").append(metrics.packetsSent.sum())
+                        .append(", пропущено=").append(metrics.sendsSkipped.sum());
+                getLogger().info(line.toString());
             }
-        }.runTaskTimer(this, 0L, 4L);
+        }.runTaskTimerAsynchronously(this, period, period);
+    }
+
+    private static String formatMicros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    /**
+     * Обработчики подкоманд. Имя из команды ищется в таблице текущего снимка настроек,
+     * поэтому время разбора не зависит ни от числа подкоманд, ни от их порядка.
+     */
+    @FunctionalInterface
+    private interface SubcommandHandler {
+        void handle(Settings settings, CommandSender sender, String label, String[] args);
+    }
+
+    private final Map<Subcommand, SubcommandHandler> subcommandHandlers = new EnumMap<>(Subcommand.class);
+    {
+        subcommandHandlers.put(Subcommand.HELP, this::handleHelp);
+        subcommandHandlers.put(Subcommand.ENABLE, (settings, sender, label, args) -> handleToggle(settings, sender, true));
+        subcommandHandlers.put(Subcommand.DISABLE, (settings, sender, label, args) -> handleToggle(settings, sender, false));
+        subcommandHandlers.put(Subcommand.UNIT, (settings, sender, label, args) -> handleUnit(settings, sender, args, false));
+        subcommandHandlers.put(Subcommand.TOPTOGGLEUNIT, (settings, sender, label, args) -> handleUnit(settings, sender, args, true));
+        subcommandHandlers.put(Subcommand.RELOAD, this::handleReload);
+        subcommandHandlers.put(Subcommand.STARTRECORDSPEED, this::handleStartRecordSpeed);
+        subcommandHandlers.put(Subcommand.TOPSPEED, this::handleTopSpeed);
+        subcommandHandlers.put(Subcommand.MYRANK, this::handleMyRank);
+        subcommandHandlers.put(Subcommand.STATS, this::handleStats);
+        subcommandHandlers.put(Subcommand.EXPORT, (settings, sender, label, args) -> handleTransfer(settings, sender, args, true));
+        subcommandHandlers.put(Subcommand.IMPORT, (settings, sender, label, args) -> handleTransfer(settings, sender, args, false));
+        subcommandHandlers.put(Subcommand.HISTORY, this::handleHistory);
     }
 
     @Override
-    @SuppressWarnings("LoggerStringConcat")
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        long start = System.nanoTime();
+        // Один снимок настроек на всю команду, включая её отложенные ответы.
+        Settings settings = this.settings;
+        Subcommand subcommand = args.length == 0 ? Subcommand.HELP : settings.subcommand(args[0]);
+        try {
+            handleCommand(settings, subcommand, sender, label, args);
+        } finally {
+            metrics.record(subcommand == null ? UNKNOWN_COMMAND_PHASE : subcommand.metricName, start);
+        }
+        return true;
+    }
+
+    private void handleCommand(Settings settings, Subcommand subcommand, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
         if (sender == null || (!(sender instanceof Player) && !(sender instanceof ConsoleCommandSender))) {
             if (sender != null) {
-                sender.sendMessage(getMessage("no_console_player_command", null));
+                sender.sendMessage(messages.render(MessageKey.NO_CONSOLE_PLAYER_COMMAND));
             }
-            return true;
+            return;
         }
-
-        Map<String, String> helpPlaceholders = new HashMap<>();
-        helpPlaceholders.put("label", label);
-        helpPlaceholders.put("enable", cmdEnable);
-        helpPlaceholders.put("disable", cmdDisable);
-        helpPlaceholders.put("unit", cmdUnit);
-        helpPlaceholders.put("reload", cmdReload);
-        helpPlaceholders.put("help", cmdHelp);
-        helpPlaceholders.put("startrecordspeed", cmdStartRecordSpeed);
-        helpPlaceholders.put("topspeed", cmdTopSpeed);
-        helpPlaceholders.put("toptoggleunit", cmdTopToggleUnit);
-
-
-        if (args.length == 0 || args[0].equalsIgnoreCase(cmdHelp)) {
-            sender.sendMessage(getMessage("help_header", helpPlaceholders));
-            sender.sendMessage(getMessage("help_enable", helpPlaceholders));
-            sender.sendMessage(getMessage("help_disable", helpPlaceholders));
-            sender.sendMessage(getMessage("help_unit", helpPlaceholders));
-            sender.sendMessage(getMessage("help_reload", helpPlaceholders));
-            sender.sendMessage(getMessage("help_help", helpPlaceholders));
-            sender.sendMessage(getMessage("help_startrecordspeed", helpPlaceholders));
-            sender.sendMessage(getMessage("help_topspeed", helpPlaceholders));
-            sender.sendMessage(getMessage("help_toptoggleunit", helpPlaceholders));
-            return true;
+        if (subcommand == null) {
+            sender.sendMessage(messages.render(MessageKey.UNKNOWN_SUBCOMMAND, settings.helpArguments(label)));
+            return;
         }
+        subcommandHandlers.get(subcommand).handle(settings, sender, label, args);
+    }
 
-        String sub = args[0].toLowerCase();
+    /**
+     * Подсказки: имена подкоманд, доступных отправителю, затем id единиц для unit/toptoggleunit,
+     * окна и имена из рейтинга для history. Вызывается в основном потоке.
+     */
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        Settings settings = this.settings;
+        if (args.length == 1) {
+            List<String> names = settings.subcommandIndex.complete(args[0], Integer.MAX_VALUE);
+            names.removeIf(name -> {
+                String permission = settings.subcommand(name).permission;
+                return permission != null && !sender.hasPermission(permission);
+            });
+            return names;
+        }
+        Subcommand subcommand = settings.subcommand(args[0]);
+        if (subcommand == null || (subcommand.permission != null && !sender.hasPermission(subcommand.permission))) {
+            return List.of();
+        }
+        String last = args[args.length - 1];
+        switch (subcommand) {
+            case UNIT:
+            case TOPTOGGLEUNIT:
+                return args.length == 2 ? settings.unitIndex.complete(last, TAB_COMPLETE_LIMIT) : List.of();
+            case STATS:
+                return args.length == 2 && "reset".startsWith(last.toLowerCase()) ? List.of("reset") : List.of();
+            case HISTORY:
+                if (args.length > 3) {
+                    return List.of();
+                }
+                List<String> result = new ArrayList<>();
+                for (String window : HISTORY_WINDOWS) {
+                    if (window.startsWith(last.toLowerCase())) {
+                        result.add(window);
+                    }
+                }
+                if (args.length == 2 && sender.hasPermission("speedhud.history.others")) {
+                    result.addAll(completePlayerName(last));
+                }
+                return result;
+            default:
+                return List.of();
+        }
+    }
 
-        if (sub.equals(cmdStartRecordSpeed)) {
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(getMessage("start_record_player_only", null));
-                return true;
+    /**
+     * Имена из рейтинга с началом prefix. Хранилище ищет их по индексу имён, не читая весь рейтинг.
+     * Если ответ не готов сразу (SQLite), берётся прошлый ответ на это же начало или на более короткое,
+     * отфильтрованный по prefix; свежий ответ попадёт в подсказки при следующем нажатии Tab.
+     */
+    private List<String> completePlayerName(String prefix) {
+        String key = prefix.toLowerCase();
+        CompletableFuture<List<String>> names = topSpeedStore.playerNames(prefix, TAB_COMPLETE_LIMIT);
+        if (names.isDone() && !names.isCompletedExceptionally()) {
+            return names.join();
+        }
+        names.whenComplete((found, error) -> runOnMainThread(() -> {
+            if (found != null) {
+                nameCompletions.put(key, found);
             }
-            if (!sender.hasPermission("speedhud.startrecordspeed")) {
-                 sender.sendMessage(getMessage("no_permission", null));
-                 return true;
+        }));
+        for (int length = key.length(); length >= 0; length--) {
+            List<String> cached = nameCompletions.get(key.substring(0, length));
+            if (cached == null) {
+                continue;
             }
+            if (length == key.length()) {
+                return cached;
+            }
+            if (cached.size() < TAB_COMPLETE_LIMIT) {
+                // Короткое начало вернуло все свои имена, значит среди них все имена с prefix.
+                List<String> filtered = new ArrayList<>();
+                for (String name : cached) {
+                    if (name.toLowerCase().startsWith(key)) {
+                        filtered.add(name);
+                    }
+                }
+                return filtered;
+            }
+        }
+        return List.of();
+    }
 
-            Player p = (Player) sender;
-            String name = p.getName();
+    private void handleHelp(Settings settings, CommandSender sender, String label, String[] args) {
+        for (String line : settings.helpLines(label)) {
+            sender.sendMessage(line);
+        }
+    }
 
-            if (recordingPlayers.contains(name)) {
-                sender.sendMessage(getMessage("start_record_already_recording", null));
-                return true;
-            }
+    private void handleStartRecordSpeed(Settings settings, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(messages.render(MessageKey.START_RECORD_PLAYER_ONLY));
+            return;
+        }
+        if (!sender.hasPermission("speedhud.startrecordspeed")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
 
-            recordingPlayers.add(name);
-            currentMaxSpeeds.put(name, 0.0);
-            sender.sendMessage(getMessage("start_record_started", null));
+        PlayerSession session = sessions.get((Player) sender);
 
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    recordingPlayers.remove(name);
-                    double recordedSpeed = currentMaxSpeeds.getOrDefault(name, 0.0);
-                    String unitIdToSave = playerSelectedUnits.getOrDefault(p, defaultUnitId); 
-                    SpeedUnit selectedUnit = availableUnits.getOrDefault(unitIdToSave, availableUnits.get(defaultUnitId));
+        if (session.recording) {
+            sender.sendMessage(messages.render(MessageKey.START_RECORD_ALREADY_RECORDING));
+            return;
+        }
 
-                    topspeedConfig.set(name + ".speed_ms", recordedSpeed); 
-                    topspeedConfig.set(name + ".unit_id", unitIdToSave); 
-                    try {
-                        topspeedConfig.save(topspeedFile);
-                    } catch (IOException e) {
-                        getLogger().severe(getMessage("topspeed_file_save_failed", null));
-                    }
-                    
-                    Map<String, String> finishPlaceholders = new HashMap<>();
-                    finishPlaceholders.put("speed", String.format("%.2f", recordedSpeed * selectedUnit.multiplier));
-                    finishPlaceholders.put("unit", getMessage(selectedUnit.displayNameKey, null));
-                    sender.sendMessage(getMessage("start_record_finished", finishPlaceholders));
-                }
-            }.runTaskLater(this, 20L * 10);
-            return true;
+        session.recording = true;
+        session.recordingEndTick = speedTask.currentTick() + settings.recordingDurationTicks;
+        recorders.add(session);
+        speedWorker.startRecording(session.playerId);
+        sender.sendMessage(messages.render(MessageKey.START_RECORD_STARTED, settings.helpArguments(label)));
+    }
+
+    private void handleTopSpeed(Settings settings, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
+        if (!sender.hasPermission("speedhud.topspeed")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
         }
 
-        if (sub.equals(cmdTopSpeed)) {
-            if (!sender.hasPermission("speedhud.topspeed")) {
-                 sender.sendMessage(getMessage("no_permission", null));
-                 return true;
+        int requestedPage = 1;
+        if (args.length > 1) {
+            try {
+                requestedPage = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                requestedPage = -1;
             }
+        }
+        int page = requestedPage;
+        int pageSize = settings.topSpeedPageSize;
+        int offset = page < 1 ? 0 : (page - 1) * pageSize;
 
-            if (topspeedConfig.getKeys(false).isEmpty()) {
-                sender.sendMessage(getMessage("topspeed_no_data", null));
-                return true;
+        onMainThread(sender, topSpeedStore.page(offset, pageSize), result -> {
+            if (result.total == 0) {
+                sender.sendMessage(messages.render(MessageKey.TOPSPEED_NO_DATA));
+                return;
             }
 
-            class PlayerTopSpeedData {
-                String playerName;
-                double speedMs; 
-                @SuppressWarnings("unused")
-                String unitId; 
-
-                public PlayerTopSpeedData(String playerName, double speedMs, String unitId) {
-                    this.playerName = playerName;
-                    this.speedMs = speedMs;
-                    this.unitId = unitId;
-                }
+            int pages = (result.total + pageSize - 1) / pageSize;
+            if (page < 1 || page > pages) {
+                sender.sendMessage(messages.render(MessageKey.TOPSPEED_INVALID_PAGE, String.valueOf(pages)));
+                return;
             }
 
-            List<PlayerTopSpeedData> allSpeeds = new ArrayList<>();
-            for (String playerName : topspeedConfig.getKeys(false)) {
-                if (topspeedConfig.contains(playerName + ".speed_ms")) { 
-                    double speedMs = topspeedConfig.getDouble(playerName + ".speed_ms");
-                    String unitId = topspeedConfig.getString(playerName + ".unit_id", defaultUnitId);
-                    allSpeeds.add(new PlayerTopSpeedData(playerName, speedMs, unitId));
-                }
-            }
+            SpeedUnit displayUnit = resolveTopSpeedDisplayUnit(sender);
+            String unitName = messages.text(displayUnit.displayNameKey);
 
-            allSpeeds.sort(Comparator.comparingDouble((PlayerTopSpeedData data) -> data.speedMs).reversed());
+            sender.sendMessage(messages.render(MessageKey.TOPSPEED_HEADER, String.valueOf(page), String.valueOf(pages)));
 
-            sender.sendMessage(getMessage("topspeed_header", null));
-            int i = 1;
-            
-            String displayTopUnitId = defaultTopSpeedDisplayUnit;
-            if (sender instanceof Player player) {
-                displayTopUnitId = playerSelectedTopUnits.getOrDefault(player, defaultTopSpeedDisplayUnit);
-            }
-            SpeedUnit displayUnit = availableUnits.getOrDefault(displayTopUnitId, availableUnits.get(defaultTopSpeedDisplayUnit));
-            
-            if (displayUnit == null) {
-                getLogger().warning("Единица измерения для отображения топа ('" + displayTopUnitId + "') не найдена или недоступна. Использую 'м/с'.");
-                displayUnit = new SpeedUnit("ms", 1.0, "unit_ms", 0.0, 0.0); 
+            int rank = offset + 1;
+            for (LeaderboardIndex.Entry entry : result.entries) {
+                sender.sendMessage(messages.render(MessageKey.TOPSPEED_ENTRY, String.valueOf(rank++), entry.playerName,
+                        String.format("%.2f", entry.speedMs * displayUnit.multiplier), unitName));
             }
+        });
+    }
 
-            for (PlayerTopSpeedData entry : allSpeeds) {
-                Map<String, String> entryPlaceholders = new HashMap<>();
-                entryPlaceholders.put("rank", String.valueOf(i++));
-                entryPlaceholders.put("player", entry.playerName);
-                entryPlaceholders.put("speed", String.format("%.2f", entry.speedMs * displayUnit.multiplier)); 
-                entryPlaceholders.put("unit", getMessage(displayUnit.displayNameKey, null));
-                sender.sendMessage(getMessage("topspeed_entry", entryPlaceholders));
-            }
-            return true;
+    private void handleMyRank(Settings settings, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(messages.render(MessageKey.NO_CONSOLE_PLAYER_COMMAND));
+            return;
+        }
+        if (!sender.hasPermission("speedhud.topspeed")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
         }
 
-        if (sub.equals(cmdTopToggleUnit)) {
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(getMessage("no_console_player_command", null));
-                return true;
-            }
-            if (!sender.hasPermission("speedhud.toptoggleunit")) {
-                 sender.sendMessage(getMessage("no_permission", null));
-                 return true;
+        onMainThread(sender, topSpeedStore.rank(sender.getName()), result -> {
+            if (result.rank < 0) {
+                sender.sendMessage(messages.render(MessageKey.MYRANK_NO_DATA));
+                return;
             }
 
-            Player p = (Player) sender;
-            String currentTopUnitId = playerSelectedTopUnits.getOrDefault(p, defaultTopSpeedDisplayUnit);
+            SpeedUnit displayUnit = resolveTopSpeedDisplayUnit(sender);
+            sender.sendMessage(messages.render(MessageKey.MYRANK_ENTRY, String.valueOf(result.rank), String.valueOf(result.total),
+                    String.format("%.2f", result.entry.speedMs * displayUnit.multiplier), messages.text(displayUnit.displayNameKey)));
+        });
+    }
 
-            List<String> unitIds = new ArrayList<>(availableUnits.keySet());
-            if (unitIds.isEmpty()) {
-                sender.sendMessage(getMessage("topspeed_no_available_units", null));
-                return true;
-            }
+    /**
+     * /speedhud unit [единица] и /speedhud toptoggleunit [единица]: без аргумента - следующая
+     * единица в порядке config.yml, с аргументом - единица с этим id.
+     */
+    private void handleUnit(Settings settings, CommandSender sender, String[] args, boolean top) {
+        MessageTemplates messages = settings.messages;
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(messages.render(MessageKey.NO_CONSOLE_PLAYER_COMMAND));
+            return;
+        }
+        if (top && !sender.hasPermission("speedhud.toptoggleunit")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
 
-            int currentIndex = unitIds.indexOf(currentTopUnitId);
-            if (currentIndex == -1) {
-                currentIndex = 0; 
-            } else {
-                currentIndex = (currentIndex + 1) % unitIds.size();
+        PlayerSession session = sessions.get((Player) sender);
+        String nextUnitId;
+        if (args.length > 1) {
+            nextUnitId = args[1].toLowerCase();
+            if (!settings.units.containsKey(nextUnitId)) {
+                sender.sendMessage(messages.render(MessageKey.UNIT_UNKNOWN, args[1]));
+                return;
             }
-            
-            String nextUnitId = unitIds.get(currentIndex);
+        } else {
+            nextUnitId = settings.nextUnitId(top ? topUnitIdOf(session) : unitIdOf(session));
+        }
 
-            playerSelectedTopUnits.put(p, nextUnitId);
-            SpeedUnit nextUnit = availableUnits.get(nextUnitId);
-            
-            Map<String, String> unitPlaceholders = new HashMap<>();
-            unitPlaceholders.put("unit", getMessage(nextUnit.displayNameKey, null));
-            sender.sendMessage(getMessage("topspeed_unit_changed", unitPlaceholders));
-            return true;
+        SpeedUnit nextUnit = settings.units.get(nextUnitId);
+        if (top) {
+            session.topUnitId = nextUnitId;
+            sender.sendMessage(messages.render(MessageKey.TOPSPEED_UNIT_CHANGED, messages.text(nextUnit.displayNameKey)));
+        } else {
+            session.unitId = nextUnitId;
+            // Иначе у стоящего игрока до первого движения повторялся бы HUD в старой единице.
+            wake(session);
+            sender.sendMessage(messages.render(MessageKey.UNIT_CHANGED, messages.text(nextUnit.displayNameKey)));
         }
+    }
 
-        if (sub.equals(cmdEnable)) {
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(getMessage("no_console_player_command", null));
-                return true;
-            }
-            Player p = (Player) sender;
-            if (!p.hasPermission("speedhud.toggle")) {
-                sender.sendMessage(getMessage("no_permission", null));
-                return true;
-            }
-            enabledPlayers.add(p);
-            if (!availableUnits.containsKey(playerSelectedUnits.getOrDefault(p, defaultUnitId))) {
-                playerSelectedUnits.put(p, defaultUnitId);
-            } else {
-                playerSelectedUnits.putIfAbsent(p, defaultUnitId); 
-            }
-            if (!availableUnits.containsKey(playerSelectedTopUnits.getOrDefault(p, defaultTopSpeedDisplayUnit))) {
-                playerSelectedTopUnits.put(p, defaultTopSpeedDisplayUnit);
-            } else {
-                playerSelectedTopUnits.putIfAbsent(p, defaultTopSpeedDisplayUnit); 
-            }
+    private void handleToggle(Settings settings, CommandSender sender, boolean enable) {
+        MessageTemplates messages = settings.messages;
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(messages.render(MessageKey.NO_CONSOLE_PLAYER_COMMAND));
+            return;
+        }
+        Player p = (Player) sender;
+        if (!p.hasPermission("speedhud.toggle")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
+        PlayerSession session = sessions.get(p);
+        session.hudEnabled = enable;
+        updateSampling(session);
+        if (!enable) {
+            sender.sendMessage(messages.render(MessageKey.HUD_DISABLED));
+            return;
+        }
+        if (!settings.units.containsKey(unitIdOf(session))) {
+            session.unitId = null;
+        }
+        if (!settings.units.containsKey(topUnitIdOf(session))) {
+            session.topUnitId = null;
+        }
 
-            sender.sendMessage(getMessage("hud_enabled", null));
-            return true;
+        wake(session);
+        sender.sendMessage(messages.render(MessageKey.HUD_ENABLED));
+    }
+
+    private void handleStats(Settings settings, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
+        if (!sender.hasPermission("speedhud.stats")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
+        if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+            metrics.reset();
+            sender.sendMessage(messages.render(MessageKey.STATS_RESET));
+            return;
         }
 
-        if (sub.equals(cmdDisable)) {
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(getMessage("no_console_player_command", null));
-                return true;
-            }
-            Player p = (Player) sender;
-            if (!p.hasPermission("speedhud.toggle")) {
-                sender.sendMessage(getMessage("no_permission", null));
-                return true;
-            }
-            enabledPlayers.remove(p);
-            sender.sendMessage(getMessage("hud_disabled", null));
-            return true;
+        sender.sendMessage(messages.render(MessageKey.STATS_HEADER,
+                String.valueOf((System.currentTimeMillis() - metrics.since()) / 1000L)));
+        for (Map.Entry<String, LatencyHistogram> phase : metrics.phases().entrySet()) {
+            LatencyHistogram histogram = phase.getValue();
+            sender.sendMessage(messages.render(MessageKey.STATS_PHASE, phase.getKey(), String.valueOf(histogram.count()),
+                    formatMicros(histogram.mean()), formatMicros(histogram.percentile(50.0)),
+                    formatMicros(histogram.percentile(99.0)), formatMicros(histogram.max())));
         }
+        sender.sendMessage(messages.render(MessageKey.STATS_COUNTERS, String.valueOf(metrics.playersSampled.sum()),
+                String.valueOf(metrics.packetsSent.sum()), String.valueOf(metrics.sendsSkipped.sum()),
+                String.valueOf(metrics.saves.sum())));
+    }
 
-        if (sub.equals(cmdUnit)) {
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(getMessage("no_console_player_command", null));
-                return true;
-            }
-            Player p = (Player) sender;
-            String currentUnitId = playerSelectedUnits.getOrDefault(p, defaultUnitId);
+    @SuppressWarnings("LoggerStringConcat")
+    private void handleTransfer(Settings settings, CommandSender sender, String[] args, boolean export) {
+        MessageTemplates messages = settings.messages;
+        if (!sender.hasPermission("speedhud.transfer")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
+        String fileName = args.length > 1 ? args[1] : DEFAULT_TRANSFER_FILE;
+        File file = resolveTransferFile(fileName);
+        if (file == null || (!export && !file.isFile())) {
+            sender.sendMessage(messages.render(MessageKey.IMPORT_FILE_MISSING, fileName));
+            return;
+        }
 
-            List<String> unitIds = new ArrayList<>(availableUnits.keySet());
-            if (unitIds.isEmpty()) {
-                sender.sendMessage(getMessage("no_available_units", null));
-                return true;
+        CompletableFuture<Integer> transfer = export ? topSpeedStore.exportYaml(file) : topSpeedStore.importYaml(file);
+        transfer.whenComplete((count, error) -> runOnMainThread(() -> {
+            if (error != null) {
+                getLogger().log(Level.WARNING, "Не удалось " + (export ? "выгрузить" : "загрузить") + " рекорды: " + file.getName(), error);
+                sender.sendMessage(messages.render(MessageKey.TRANSFER_FAILED, fileName));
+                return;
             }
+            sender.sendMessage(messages.render(export ? MessageKey.EXPORT_DONE : MessageKey.IMPORT_DONE, fileName, String.valueOf(count)));
+        }));
+    }
+
+    private void handleReload(Settings settings, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
+        if (!sender.hasPermission("speedhud.reload")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
+        sender.sendMessage(messages.render(MessageKey.PLUGIN_RELOADING));
+        reloadSettings(sender);
+    }
 
-            int currentIndex = unitIds.indexOf(currentUnitId);
-            if (currentIndex == -1) {
-                currentIndex = 0; 
+    /**
+     * /speedhud history [игрок] [minutes|hours|days]: без окна - сводка за час, сутки и 30 дней,
+     * с окном - последние непустые периоды этого окна.
+     */
+    private void handleHistory(Settings settings, CommandSender sender, String label, String[] args) {
+        MessageTemplates messages = settings.messages;
+        if (!sender.hasPermission("speedhud.history")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
+        }
+        if (speedStats == null) {
+            sender.sendMessage(messages.render(MessageKey.HISTORY_DISABLED));
+            return;
+        }
+        String playerName = null;
+        int window = -1;
+        for (int i = 1; i < args.length; i++) {
+            int index = List.of(HISTORY_WINDOWS).indexOf(args[i].toLowerCase());
+            if (index >= 0) {
+                window = index;
             } else {
-                currentIndex = (currentIndex + 1) % unitIds.size();
+                playerName = args[i];
             }
-            
-            String nextUnitId = unitIds.get(currentIndex);
-
-            playerSelectedUnits.put(p, nextUnitId);
-            SpeedUnit nextUnit = availableUnits.get(nextUnitId);
-            
-            Map<String, String> unitPlaceholders = new HashMap<>();
-            unitPlaceholders.put("unit", getMessage(nextUnit.displayNameKey, null));
-            sender.sendMessage(getMessage("unit_changed", unitPlaceholders));
-            return true;
+        }
+        if (playerName == null) {
+            if (!(sender instanceof Player)) {
+                sender.sendMessage(messages.render(MessageKey.HISTORY_USAGE, settings.helpArguments(label)));
+                return;
+            }
+            playerName = sender.getName();
+        } else if (!playerName.equalsIgnoreCase(sender.getName()) && !sender.hasPermission("speedhud.history.others")) {
+            sender.sendMessage(messages.render(MessageKey.NO_PERMISSION));
+            return;
         }
 
-        if (sub.equals(cmdReload)) {
-            if (!sender.hasPermission("speedhud.reload")) {
-                sender.sendMessage(getMessage("no_permission", null));
-                return true;
+        String requestedName = playerName;
+        int requestedWindow = window;
+        onMainThread(sender, speedStats.history(playerName), history -> {
+            if (history == null) {
+                sender.sendMessage(messages.render(MessageKey.HISTORY_NO_DATA, requestedName));
+                return;
+            }
+            SpeedUnit unit = resolveTopSpeedDisplayUnit(sender);
+            String unitName = messages.text(unit.displayNameKey);
+            if (requestedWindow < 0) {
+                sender.sendMessage(messages.render(MessageKey.HISTORY_HEADER, history.playerName, ""));
+                for (int w = 0; w < HISTORY_WINDOWS.length; w++) {
+                    SpeedStatsStore.Summary summary = history.total(w);
+                    sender.sendMessage(messages.render(MessageKey.HISTORY_WINDOW, messages.text(HISTORY_WINDOW_NAMES[w]),
+                            formatSpeed(summary.p50Ms, unit), formatSpeed(summary.p95Ms, unit), formatSpeed(summary.maxMs, unit),
+                            unitName, String.valueOf(summary.count)));
+                }
+                return;
+            }
+            List<SpeedStatsStore.Summary> periods = history.periods(requestedWindow, HISTORY_PERIOD_LINES);
+            if (periods.isEmpty()) {
+                sender.sendMessage(messages.render(MessageKey.HISTORY_NO_DATA, history.playerName));
+                return;
             }
-            sender.sendMessage(getMessage("plugin_reloading", null));
-            loadConfigValues();
-            loadMessages();
-            sender.sendMessage(getMessage("config_updated", null));
-            return true;
+            sender.sendMessage(messages.render(MessageKey.HISTORY_HEADER, history.playerName,
+                    messages.text(HISTORY_WINDOW_NAMES[requestedWindow])));
+            DateTimeFormatter timeFormat = HISTORY_TIME_FORMATS[requestedWindow];
+            for (SpeedStatsStore.Summary summary : periods) {
+                sender.sendMessage(messages.render(MessageKey.HISTORY_PERIOD,
+                        timeFormat.format(summary.start),
+                        formatSpeed(summary.p50Ms, unit), formatSpeed(summary.p95Ms, unit), formatSpeed(summary.maxMs, unit),
+                        unitName, String.valueOf(summary.count)));
+            }
+        });
+    }
+
+    private static String formatSpeed(double speedMs, SpeedUnit unit) {
+        return String.format("%.2f", speedMs * unit.multiplier);
+    }
+
+    /**
+     * Файл выгрузки внутри папки плагина или null, если имя ведёт за её пределы.
+     */
+    private File resolveTransferFile(String name) {
+        Path folder = getDataFolder().toPath().toAbsolutePath().normalize();
+        Path file = folder.resolve(name).normalize();
+        return file.startsWith(folder) && !file.equals(folder) ? file.toFile() : null;
+    }
+
+    @SuppressWarnings("LoggerStringConcat")
+    private SpeedUnit resolveTopSpeedDisplayUnit(CommandSender sender) {
+        String displayTopUnitId = settings.defaultTopSpeedDisplayUnit;
+        if (sender instanceof Player player) {
+            displayTopUnitId = topUnitIdOf(sessions.get(player));
         }
+        SpeedUnit displayUnit = settings.units.getOrDefault(displayTopUnitId, settings.units.get(settings.defaultTopSpeedDisplayUnit));
 
-        sender.sendMessage(getMessage("unknown_subcommand", helpPlaceholders));
-        return true;
+        if (displayUnit == null) {
+            getLogger().warning("Единица измерения для отображения топа ('" + displayTopUnitId + "') не найдена или недоступна. Использую 'м/с'.");
+            displayUnit = new SpeedUnit("ms", 1.0, "unit_ms", 0.0, 0.0); 
+        }
+        return displayUnit;
     }
 
+    /**
+     * Возвращает копию последних известных позиций игроков.
+     *
+     * @deprecated используйте {@link SpeedHudApi} из ServicesManager
+     */
+    @Deprecated
     public Map<UUID, Location> getLastLocations() {
-        return lastLocations;
+        Map<UUID, Location> locations = new HashMap<>();
+        for (Map.Entry<UUID, SpeedWorker.Position> entry : speedWorker.positions().entrySet()) {
+            SpeedWorker.Position position = entry.getValue();
+            World world = Bukkit.getWorld(position.worldId);
+            locations.put(entry.getKey(), new Location(world, position.x, position.y, position.z));
+        }
+        return locations;
     }
 }
\ No newline at end of file
@@ -0,0 +1,197 @@
+package k0k0ska.speedhud;
+
+import java.util.UUID;
+
+/**
+ * Состояние замера скорости одного игрока: последняя позиция в примитивах
+ * и кольцевой буфер последних скоростей с текущей суммой для скользящего среднего.
+ * После создания не выделяет память на каждый замер.
+ */
+final class SpeedSampleState {
+
+    static final int TICKS_PER_SECOND = 20;
+
+    private final double[] history;
+    private int head;
+    private int size;
+    private double sum;
+    private double lastSpeed;
+    private boolean lastAccepted;
+    private int zeroStreak;
+
+    private boolean hasLast;
+    private long lastTick;
+    private long lastWorldMost;
+    private long lastWorldLeast;
+    private double lastX;
+    private double lastY;
+    private double lastZ;
+
+    SpeedSampleState(int historySize) {
+        this.history = new double[historySize];
+    }
+
+    /**
+     * Размер окна истории в замерах, покрывающего windowTicks тиков при замере раз в intervalTicks.
+     */
+    static int historySize(int windowTicks, int intervalTicks) {
+        return Math.max(1, Math.round((float) windowTicks / Math.max(1, intervalTicks)));
+    }
+
+    /**
+     * Принимает позицию игрока на тике tick и возвращает сглаженную скорость в м/с.
+     * Скорость считается по реально прошедшим тикам с прошлого замера.
+     * Первый замер, переход между мирами или неизвестный мир только запоминают позицию.
+     */
+    double sample(UUID worldId, double x, double y, double z, long tick) {
+        if (worldId == null) {
+            return sample(false, 0L, 0L, x, y, z, tick);
+        }
+        return sample(true, worldId.getMostSignificantBits(), worldId.getLeastSignificantBits(), x, y, z, tick);
+    }
+
+    /**
+     * То же, что {@link #sample(UUID, double, double, double, long)}, но мир передаётся
+     * двумя половинами UUID, чтобы не создавать объект.
+     */
+    double sample(boolean hasWorld, long worldMost, long worldLeast, double x, double y, double z, long tick) {
+        return sample(hasWorld, worldMost, worldLeast, x, y, z, tick, false, Double.POSITIVE_INFINITY, Double.NaN);
+    }
+
+    /**
+     * Замер с учётом политики мира. Если velocity не NaN, это скорость транспорта или элитр в м/с,
+     * и она используется вместо смещения. Скорость выше maxSpeed считается телепортом:
+     * замер не попадает в историю, запоминается только новая позиция.
+     */
+    double sample(boolean hasWorld, long worldMost, long worldLeast, double x, double y, double z, long tick,
+                  boolean horizontalOnly, double maxSpeed, double velocity) {
+        if (hasLast && tick <= lastTick) {
+            lastAccepted = false;
+            return average();
+        }
+        boolean continuous = hasLast && hasWorld && worldMost == lastWorldMost && worldLeast == lastWorldLeast;
+        double speed = 0.0;
+        if (continuous) {
+            if (!Double.isNaN(velocity)) {
+                speed = velocity;
+            } else {
+                double dx = x - lastX;
+                double dy = horizontalOnly ? 0.0 : y - lastY;
+                double dz = z - lastZ;
+                double distanceSquared = dx * dx + dy * dy + dz * dz;
+                if (distanceSquared > 0.0) {
+                    speed = Math.sqrt(distanceSquared) * TICKS_PER_SECOND / (tick - lastTick);
+                }
+            }
+        }
+
+        lastAccepted = continuous && speed <= maxSpeed;
+        if (lastAccepted) {
+            push(speed);
+            lastSpeed = speed;
+            zeroStreak = speed == 0.0 ? zeroStreak + 1 : 0;
+        }
+
+        hasLast = hasWorld;
+        lastWorldMost = worldMost;
+        lastWorldLeast = worldLeast;
+        lastTick = tick;
+        lastX = x;
+        lastY = y;
+        lastZ = z;
+
+        return average();
+    }
+
+    double average() {
+        return size == 0 ? 0.0 : sum / size;
+    }
+
+    /**
+     * Мгновенная скорость последнего замера в м/с, без сглаживания.
+     */
+    double lastSpeed() {
+        return lastSpeed;
+    }
+
+    /**
+     * Последний замер попал в историю (не был первым, после смены мира или выбросом).
+     */
+    boolean lastAccepted() {
+        return lastAccepted;
+    }
+
+    /**
+     * Игрок не двигался на протяжении всего окна истории.
+     */
+    boolean isIdle() {
+        return zeroStreak >= history.length;
+    }
+
+    /**
+     * Забывает позицию и историю, чтобы следующий замер не сравнивался с устаревшей точкой.
+     */
+    void reset() {
+        head = 0;
+        size = 0;
+        sum = 0.0;
+        lastSpeed = 0.0;
+        zeroStreak = 0;
+        hasLast = false;
+    }
+
+    /**
+     * Забывает только позицию (например, после телепорта): следующий замер не даст скачка,
+     * а история скоростей сохраняется.
+     */
+    void forgetPosition() {
+        hasLast = false;
+    }
+
+    boolean hasLastPosition() {
+        return hasLast;
+    }
+
+    UUID lastWorldId() {
+        return hasLast ? new UUID(lastWorldMost, lastWorldLeast) : null;
+    }
+
+    /**
+     * Совпадает ли мир последней позиции с worldId; в отличие от lastWorldId() не создаёт UUID.
+     */
+    boolean isLastWorld(UUID worldId) {
+        return hasLast && worldId.getMostSignificantBits() == lastWorldMost && worldId.getLeastSignificantBits() == lastWorldLeast;
+    }
+
+    double lastX() {
+        return lastX;
+    }
+
+    double lastY() {
+        return lastY;
+    }
+
+    double lastZ() {
+        return lastZ;
+    }
+
+    private void push(double speed) {
+        if (size == history.length) {
+            sum -= history[head];
+        } else {
+            size++;
+        }
+        history[head] = speed;
+        sum += speed;
+        head++;
+        if (head == history.length) {
+            head = 0;
+            // Пересчитываем сумму на каждом обороте буфера, чтобы не копилась ошибка округления.
+            double exact = 0.0;
+            for (int i = 0; i < size; i++) {
+                exact += history[i];
+            }
+            sum = exact;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package k0k0ska.speedhud;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Статистика скорости игроков по времени для /speedhud history. Для каждого игрока хранятся
+ * кольца корзин: 60 минут, 24 часа и 30 дней. Корзина - гистограмма скоростей по фиксированным
+ * диапазонам и максимум, поэтому память на игрока постоянна при любой длительности работы сервера.
+ * Часы и дни отсчитываются по местному времени часового пояса сервера.
+ * <p>
+ * Данные игроков онлайн лежат в памяти в массивах int; изменённые записи периодически
+ * переписываются на свои места в speedstats.bin отдельным потоком. Записи вышедших игроков
+ * читаются из файла по запросу; место игрока, не появлявшегося дольше дневного кольца,
+ * переиспользуется.
+ * <pre>
+ * заголовок (16 байт): magic, version, recordBytes, 0
+ * запись:              uuidMost, uuidLeast, lastDay, nameLength (short), имя UTF-8 (26 байт),
+ *                      корзины: period, max (биты float), счётчики по диапазонам
+ * </pre>
+ * {@link #record} вызывается рабочим потоком замеров, остальные методы - из любого потока.
+ */
+final class SpeedStatsStore {
+
+    static final int WINDOW_MINUTES = 0;
+    static final int WINDOW_HOURS = 1;
+    static final int WINDOW_DAYS = 2;
+
+    private static final int MAGIC = 0x53485331;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 16;
+    private static final int NAME_BYTES = 26;
+    private static final int RECORD_HEADER_BYTES = 48;
+
+    private static final int[] SLOTS = {60, 24, 30};
+    private static final long[] PERIOD_MILLIS = {60_000L, 3_600_000L, 86_400_000L};
+    // Верхние границы диапазонов скорости в м/с; последний диапазон открыт сверху.
+    private static final float[] BIN_UPPER = {0.5f, 1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f, 10f, 13f, 17f, 22f, 30f, 45f};
+    private static final int BINS = BIN_UPPER.length + 1;
+    private static final int BUCKET_INTS = 2 + BINS;
+    private static final int[] WINDOW_OFFSET = new int[SLOTS.length];
+    private static final int RECORD_INTS;
+    private static final int RECORD_BYTES;
+
+    static {
+        int offset = 0;
+        for (int window = 0; window < SLOTS.length; window++) {
+            WINDOW_OFFSET[window] = offset;
+            offset += SLOTS[window] * BUCKET_INTS;
+        }
+        RECORD_INTS = offset;
+        RECORD_BYTES = RECORD_HEADER_BYTES + RECORD_INTS * Integer.BYTES;
+    }
+
+    /**
+     * p50, p95 и максимум скорости в м/с за период или окно. Перцентили - верхняя граница
+     * диапазона, в который они попали, но не больше максимума.
+     */
+    static final class Summary {
+        // Начало периода по местному времени сервера.
+        final LocalDateTime start;
+        final long count;
+        final double p50Ms;
+        final double p95Ms;
+        final double maxMs;
+
+        Summary(LocalDateTime start, long count, double p50Ms, double p95Ms, double maxMs) {
+            this.start = start;
+            this.count = count;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.maxMs = maxMs;
+        }
+    }
+
+    /**
+     * Копия корзин одного игрока на момент запроса.
+     */
+    static final class History {
+        final String playerName;
+        private final int[] buckets;
+        // Текущее местное время в миллисекундах (см. localMillis).
+        private final long nowMillis;
+
+        private History(String playerName, int[] buckets, long nowMillis) {
+            this.playerName = playerName;
+            this.buckets = buckets;
+            this.nowMillis = nowMillis;
+        }
+
+        /**
+         * Сводка за всё окно: последний час, сутки или 30 дней.
+         */
+        Summary total(int window) {
+            long[] counts = new long[BINS];
+            float max = 0f;
+            long current = nowMillis / PERIOD_MILLIS[window];
+            for (int slot = 0; slot < SLOTS[window]; slot++) {
+                int base = WINDOW_OFFSET[window] + slot * BUCKET_INTS;
+                if (!isLive(buckets[base], current, window)) {
+                    continue;
+                }
+                max = Math.max(max, Float.intBitsToFloat(buckets[base + 1]));
+                for (int bin = 0; bin < BINS; bin++) {
+                    counts[bin] += buckets[base + 2 + bin];
+                }
+            }
+            return summarize(current - SLOTS[window] + 1, window, counts, max);
+        }
+
+        /**
+         * Непустые периоды окна от новых к старым, не больше limit.
+         */
+        List<Summary> periods(int window, int limit) {
+            List<Summary> result = new ArrayList<>();
+            long current = nowMillis / PERIOD_MILLIS[window];
+            long[] counts = new long[BINS];
+            for (long period = current; period > current - SLOTS[window] && result.size() < limit; period--) {
+                int base = WINDOW_OFFSET[window] + (int) (period % SLOTS[window]) * BUCKET_INTS;
+                if (buckets[base] != (int) period) {
+                    continue;
+                }
+                for (int bin = 0; bin < BINS; bin++) {
+                    counts[bin] = buckets[base + 2 + bin];
+                }
+                result.add(summarize(period, window, counts, Float.intBitsToFloat(buckets[base + 1])));
+            }
+            return result;
+        }
+
+        private static Summary summarize(long period, int window, long[] counts, float max) {
+            long count = 0L;
+            for (long binCount : counts) {
+                count += binCount;
+            }
+            long startMillis = period * PERIOD_MILLIS[window];
+            LocalDateTime start = LocalDateTime.ofEpochSecond(Math.floorDiv(startMillis, 1000L), 0, ZoneOffset.UTC);
+            return new Summary(start, count,
+                    percentile(counts, count, 50.0, max), percentile(counts, count, 95.0, max), max);
+        }
+
+        private static double percentile(long[] counts, long count, double percentile, float max) {
+            if (count == 0) {
+                return 0.0;
+            }
+            long target = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0L;
+            for (int bin = 0; bin < BIN_UPPER.length; bin++) {
+                seen += counts[bin];
+                if (seen >= target) {
+                    return Math.min(BIN_UPPER[bin], max);
+                }
+            }
+            return max;
+        }
+    }
+
+    private static final class PlayerStats {
+        final UUID playerId;
+        final String playerName;
+        // Защищено монитором объекта: пишет рабочий поток замеров, читает поток записи.
+        final int[] buckets = new int[RECORD_INTS];
+        int lastDay;
+        boolean dirty;
+        // Поле ниже используется только потоком записи; -1 - места в файле ещё нет.
+        int slot = -1;
+
+        PlayerStats(UUID playerId, String playerName) {
+            this.playerId = playerId;
+            this.playerName = playerName;
+        }
+    }
+
+    private final File file;
+    private final Logger logger;
+    private final PluginMetrics metrics;
+    private final ScheduledExecutorService writer;
+    private final Map<UUID, PlayerStats> online = new ConcurrentHashMap<>();
+    private final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+
+    // Смещение пояса и промежуток, в котором оно действует; только рабочий поток замеров.
+    private long recordOffsetMillis;
+    private long recordOffsetFrom = Long.MAX_VALUE;
+    private long recordOffsetUntil = Long.MIN_VALUE;
+
+    // Поля ниже используются только потоком записи.
+    private FileChannel channel;
+    private final Map<UUID, Integer> slots = new HashMap<>();
+    private final Map<String, UUID> names = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int recordCount;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_BYTES);
+
+    SpeedStatsStore(File dataFolder, Logger logger, PluginMetrics metrics) {
+        this.file = new File(dataFolder, "speedstats.bin");
+        this.logger = logger;
+        this.metrics = metrics;
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SpeedHUD-Stats-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Открывает файл и читает заголовки записей. Вызывается один раз при включении плагина.
+     */
+    void load(long flushIntervalSeconds) {
+        writer.execute(this::open);
+        if (flushIntervalSeconds > 0) {
+            writer.scheduleWithFixedDelay(this::flush, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Начинает собирать статистику вошедшего игрока, подгрузив его прошлые корзины из файла.
+     */
+    void track(UUID playerId, String playerName) {
+        writer.execute(() -> {
+            PlayerStats stats = new PlayerStats(playerId, playerName);
+            Integer slot = slots.get(playerId);
+            if (slot != null && readRecord(slot, stats.buckets)) {
+                stats.slot = slot;
+            }
+            names.put(playerName.toLowerCase(Locale.ROOT), playerId);
+            online.put(playerId, stats);
+        });
+    }
+
+    /**
+     * Сохраняет корзины вышедшего игрока и убирает их из памяти.
+     */
+    void untrack(UUID playerId) {
+        writer.execute(() -> {
+            PlayerStats stats = online.remove(playerId);
+            if (stats != null) {
+                write(stats);
+            }
+        });
+    }
+
+    /**
+     * Добавляет замер скорости в текущие минуту, час и день. Только рабочий поток замеров.
+     */
+    void record(UUID playerId, double speedMs, long epochMillis) {
+        PlayerStats stats = online.get(playerId);
+        if (stats == null) {
+            return;
+        }
+        if (epochMillis < recordOffsetFrom || epochMillis >= recordOffsetUntil) {
+            // Смещение меняется только при переводе часов, поэтому правила пояса читаются редко.
+            Instant now = Instant.ofEpochMilli(epochMillis);
+            ZoneOffsetTransition previous = zoneRules.previousTransition(now);
+            ZoneOffsetTransition next = zoneRules.nextTransition(now);
+            recordOffsetMillis = zoneRules.getOffset(now).getTotalSeconds() * 1000L;
+            recordOffsetFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000L;
+            recordOffsetUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000L;
+        }
+        long nowMillis = epochMillis + recordOffsetMillis;
+        float speed = (float) speedMs;
+        int bin = 0;
+        while (bin < BIN_UPPER.length && speed > BIN_UPPER[bin]) {
+            bin++;
+        }
+        synchronized (stats) {
+            int[] buckets = stats.buckets;
+            for (int window = 0; window < SLOTS.length; window++) {
+                int period = (int) (nowMillis / PERIOD_MILLIS[window]);
+                int base = WINDOW_OFFSET[window] + (period % SLOTS[window]) * BUCKET_INTS;
+                if (buckets[base] != period) {
+                    // Корзина осталась от прошлого оборота кольца.
+                    Arrays.fill(buckets, base, base + BUCKET_INTS, 0);
+                    buckets[base] = period;
+                }
+                if (speed > Float.intBitsToFloat(buckets[base + 1])) {
+                    buckets[base + 1] = Float.floatToRawIntBits(speed);
+                }
+                buckets[base + 2 + bin]++;
+            }
+            stats.lastDay = (int) (nowMillis / PERIOD_MILLIS[WINDOW_DAYS]);
+            stats.dirty = true;
+        }
+    }
+
+    /**
+     * Корзины игрока по имени: из памяти, если он онлайн, иначе из файла. null, если данных нет.
+     * Future завершается в потоке записи.
+     */
+    CompletableFuture<History> history(String playerName) {
+        long now = localMillis(System.currentTimeMillis());
+        CompletableFuture<History> result = new CompletableFuture<>();
+        writer.execute(() -> {
+            try {
+                UUID playerId = names.get(playerName.toLowerCase(Locale.ROOT));
+                if (playerId == null) {
+                    result.complete(null);
+                    return;
+                }
+                PlayerStats stats = online.get(playerId);
+                if (stats != null) {
+                    synchronized (stats) {
+                        result.complete(new History(stats.playerName, stats.buckets.clone(), now));
+                    }
+                    return;
+                }
+                Integer slot = slots.get(playerId);
+                int[] buckets = new int[RECORD_INTS];
+                String storedName = slot == null ? null : readRecordName(slot);
+                result.complete(storedName != null && readRecord(slot, buckets) ? new History(storedName, buckets, now) : null);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Сохраняет изменения и останавливает поток записи. Блокирует до завершения записи.
+     */
+    void close() {
+        writer.execute(this::flush);
+        writer.execute(this::closeChannel);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe("Не удалось сохранить статистику скорости.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isLive(int period, long current, int window) {
+        return period != 0 && period <= current && period > current - SLOTS[window];
+    }
+
+    private void open() {
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+            if (channel.size() >= FILE_HEADER_BYTES) {
+                channel.read(header, 0L);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != RECORD_BYTES) {
+                    channel.close();
+                    File old = new File(file.getParentFile(), file.getName() + ".old");
+                    Files.move(file.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    logger.warning("Файл статистики скорости другого формата сохранён как " + old.getName() + ".");
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } else {
+                    readIndex();
+                    return;
+                }
+            }
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).putInt(0).flip();
+            channel.write(header, 0L);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Не удалось открыть файл статистики скорости " + file.getName() + ".", e);
+            closeChannel();
+        }
+    }
+
+    /**
+     * Время в миллисекундах, сдвинутое на смещение пояса сервера: деление на длину периода
+     * даёт местные часы и дни, а не UTC.
+     */
+    private long localMillis(long epochMillis) {
+        return epochMillis + zoneRules.getOffset(Instant.ofEpochMilli(epochMillis)).getTotalSeconds() * 1000L;
+    }
+
+    private void readIndex() throws IOException {
+        recordCount = (int) ((channel.size() - FILE_HEADER_BYTES) / RECORD_BYTES);
+        int today = (int) (localMillis(System.currentTimeMillis()) / PERIOD_MILLIS[WINDOW_DAYS]);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        for (int slot = 0; slot < recordCount; slot++) {
+            header.clear();
+            channel.read(header, offsetOf(slot));
+            header.flip();
+            long most = header.getLong();
+            long least = header.getLong();
+            int lastDay = header.getInt();
+            if ((most == 0L && least == 0L) || today - lastDay >= SLOTS[WINDOW_DAYS]) {
+                freeSlots.add(slot);
+                continue;
+            }
+            UUID playerId = new UUID(most, least);
+            slots.put(playerId, slot);
+            String name = decodeName(header);
+            if (name != null) {
+                names.put(name.toLowerCase(Locale.ROOT), playerId);
+            }
+        }
+    }
+
+    private void flush() {
+        long start = System.nanoTime();
+        for (PlayerStats stats : online.values()) {
+            write(stats);
+        }
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось сохранить статистику скорости.", e);
+        }
+        metrics.record(PluginMetrics.PHASE_HISTORY_FLUSH, start);
+    }
+
+    /**
+     * Переписывает запись игрока на её место в файле, если она изменилась.
+     */
+    private void write(PlayerStats stats) {
+        if (channel == null) {
+            return;
+        }
+        ByteBuffer buffer = recordBuffer;
+        buffer.clear();
+        synchronized (stats) {
+            if (!stats.dirty) {
+                return;
+            }
+            stats.dirty = false;
+            buffer.putLong(stats.playerId.getMostSignificantBits());
+            buffer.putLong(stats.playerId.getLeastSignificantBits());
+            buffer.putInt(stats.lastDay);
+            byte[] name = stats.playerName.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, NAME_BYTES);
+            buffer.putShort((short) length);
+            buffer.put(name, 0, length);
+            buffer.position(RECORD_HEADER_BYTES);
+            buffer.asIntBuffer().put(stats.buckets);
+        }
+        buffer.position(0).limit(RECORD_BYTES);
+
+        if (stats.slot < 0) {
+            Integer free = freeSlots.poll();
+            stats.slot = free != null ? free : recordCount++;
+            slots.put(stats.playerId, stats.slot);
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offsetOf(stats.slot) + buffer.position());
+            }
+        } catch (IOException e) {
+            synchronized (stats) {
+                stats.dirty = true;
+            }
+            logger.log(Level.WARNING, "Не удалось записать статистику скорости игрока " + stats.playerName + ".", e);
+        }
+    }
+
+    private boolean readRecord(int slot, int[] buckets) {
+        if (channel == null) {
+            return false;
+        }
+        ByteBuffer buffer = recordBuffer;
+        buffer.clear();
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offsetOf(slot) + buffer.position()) < 0) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось прочитать статистику скорости из " + file.getName() + ".", e);
+            return false;
+        }
+        buffer.position(RECORD_HEADER_BYTES);
+        buffer.asIntBuffer().get(buckets);
+        return true;
+    }
+
+    private String readRecordName(int slot) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        try {
+            channel.read(header, offsetOf(slot));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось прочитать статистику скорости из " + file.getName() + ".", e);
+            return null;
+        }
+        return decodeName(header);
+    }
+
+    private static String decodeName(ByteBuffer header) {
+        int length = header.getShort(20);
+        if (length <= 0 || length > NAME_BYTES) {
+            return null;
+        }
+        return new String(header.array(), 22, length, StandardCharsets.UTF_8);
+    }
+
+    private static long offsetOf(int slot) {
+        return FILE_HEADER_BYTES + (long) slot * RECORD_BYTES;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось закрыть файл статистики скорости.", e);
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,195 @@
+package k0k0ska.speedhud;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import net.md_5.bungee.api.ChatMessageType;
+
+/**
+ * Работа основного потока раз в тик: отправка готовых пакетов HUD, завершение записей,
+ * снятие позиций в {@link SampleBatch} и передача пачки рабочему потоку.
+ * Не зависит от JavaPlugin, поэтому тот же код гоняет симуляция нагрузки в benchmarks.
+ * Только основной поток.
+ */
+final class SpeedTickTask implements Runnable {
+
+    /**
+     * То, что задача берёт у плагина.
+     */
+    interface Host {
+        SamplingPolicy policyFor(World world);
+
+        /**
+         * Единица HUD игрока или null, если HUD у него выключен.
+         */
+        SpeedUnit hudUnitOf(PlayerSession session);
+
+        PlayerSession session(UUID playerId);
+
+        /**
+         * Заканчивает запись; сессия уже убрана из recorders.
+         */
+        void finishRecording(PlayerSession session);
+    }
+
+    private final Host host;
+    private final SamplingScheduler<PlayerSession> samplingScheduler;
+    private final Set<PlayerSession> recorders;
+    private final SpeedWorker speedWorker;
+    private final PluginMetrics metrics;
+    private final HudRateController hudRate;
+    private final Logger logger;
+    private final Location scratchLocation = new Location(null, 0, 0, 0);
+    // Припаркованные стоящие игроки, которым повторяется последний HUD. Разбуженные и вышедшие
+    // убираются при очередном повторе.
+    private final Set<PlayerSession> parked = new LinkedHashSet<>();
+
+    private int sampleIntervalTicks = 4;
+    private int recordingIntervalTicks = 1;
+    private long currentTick;
+
+    SpeedTickTask(Host host, SamplingScheduler<PlayerSession> samplingScheduler, Set<PlayerSession> recorders,
+                  SpeedWorker speedWorker, PluginMetrics metrics, HudRateController hudRate, Logger logger) {
+        this.host = host;
+        this.samplingScheduler = samplingScheduler;
+        this.recorders = recorders;
+        this.speedWorker = speedWorker;
+        this.metrics = metrics;
+        this.hudRate = hudRate;
+        this.logger = logger;
+    }
+
+    void configure(int sampleIntervalTicks, int recordingIntervalTicks) {
+        this.sampleIntervalTicks = sampleIntervalTicks;
+        this.recordingIntervalTicks = recordingIntervalTicks;
+    }
+
+    long currentTick() {
+        return currentTick;
+    }
+
+    @Override
+    public void run() {
+        long tick = ++currentTick;
+        long tickStart = System.nanoTime();
+        long start = tickStart;
+        drainWorkerOutput();
+        if (tick % SpeedWorker.HUD_KEEPALIVE_TICKS == 0 && !parked.isEmpty()) {
+            resendParkedHud();
+        }
+        metrics.record(PluginMetrics.PHASE_HUD_SEND, start);
+
+        start = System.nanoTime();
+        if (!recorders.isEmpty()) {
+            Iterator<PlayerSession> iterator = recorders.iterator();
+            while (iterator.hasNext()) {
+                PlayerSession session = iterator.next();
+                if (tick >= session.recordingEndTick) {
+                    iterator.remove();
+                    host.finishRecording(session);
+                }
+            }
+        }
+        SampleBatch batch = speedWorker.acquireBatch(tick);
+        if (tick % recordingIntervalTicks == 0) {
+            for (PlayerSession session : recorders) {
+                capture(batch, session, SampleBatch.KIND_RECORDER, null, tick);
+            }
+        }
+        samplingScheduler.tick(session -> {
+            capture(batch, session, SampleBatch.KIND_HUD, host.hudUnitOf(session), tick);
+            return false;
+        });
+        speedWorker.submit(batch);
+        metrics.record(PluginMetrics.PHASE_SAMPLING, start);
+
+        if (hudRate.onTick(System.nanoTime() - tickStart)) {
+            logger.info(String.format("Работа плагина за тик в среднем %.2f мс, интервал замеров HUD x%d.",
+                    hudRate.averageWorkMillis(), hudRate.multiplier()));
+        }
+    }
+
+    private void capture(SampleBatch batch, PlayerSession session, byte kind, SpeedUnit hudUnit, long tick) {
+        Player player = session.player;
+        Location current = player.getLocation(scratchLocation);
+        World currentWorld = current.getWorld();
+        SamplingPolicy policy = host.policyFor(currentWorld);
+        if (!policy.enabled) {
+            return;
+        }
+        if (kind == SampleBatch.KIND_HUD) {
+            int interval = Math.max(policy.intervalTicks, sampleIntervalTicks) * hudRate.multiplier();
+            if (interval > sampleIntervalTicks && tick - session.lastHudSampleTick < interval) {
+                return;
+            }
+            session.lastHudSampleTick = tick;
+        }
+        batch.add(session.playerId, kind, currentWorld == null ? null : currentWorld.getUID(),
+                current.getX(), current.getY(), current.getZ(), hudUnit, policy, velocityOf(player, policy));
+    }
+
+    private void drainWorkerOutput() {
+        SpeedWorker.HudPacket packet;
+        while ((packet = speedWorker.pollPacket()) != null) {
+            PlayerSession session = host.session(packet.playerId);
+            if (session != null && session.hudEnabled) {
+                session.player.spigot().sendMessage(ChatMessageType.ACTION_BAR, packet.component);
+                session.lastHud = packet.component;
+                metrics.packetsSent.increment();
+            }
+        }
+        UUID idleId;
+        while ((idleId = speedWorker.pollIdle()) != null) {
+            PlayerSession session = host.session(idleId);
+            // Пассажир не получает PlayerMoveEvent и остался бы припаркованным, пока едет.
+            if (session != null && !session.player.isInsideVehicle() && samplingScheduler.remove(session)) {
+                session.idle = true;
+                parked.add(session);
+            }
+        }
+    }
+
+    private void resendParkedHud() {
+        Iterator<PlayerSession> iterator = parked.iterator();
+        while (iterator.hasNext()) {
+            PlayerSession session = iterator.next();
+            if (!session.idle || host.session(session.playerId) != session) {
+                iterator.remove();
+            } else if (session.hudEnabled && session.lastHud != null) {
+                session.player.spigot().sendMessage(ChatMessageType.ACTION_BAR, session.lastHud);
+                metrics.packetsSent.increment();
+            }
+        }
+    }
+
+    /**
+     * Скорость транспорта или полёта на элитрах в м/с, NaN - если её нет и нужно считать по смещению.
+     */
+    private static double velocityOf(Player player, SamplingPolicy policy) {
+        if (!policy.useVehicleVelocity) {
+            return Double.NaN;
+        }
+        Entity vehicle = player.getVehicle();
+        Vector velocity;
+        if (vehicle != null) {
+            velocity = vehicle.getVelocity();
+        } else if (player.isGliding()) {
+            velocity = player.getVelocity();
+        } else {
+            return Double.NaN;
+        }
+        double vx = velocity.getX();
+        double vy = policy.horizontalOnly ? 0.0 : velocity.getY();
+        double vz = velocity.getZ();
+        return Math.sqrt(vx * vx + vy * vy + vz * vz) * SpeedSampleState.TICKS_PER_SECOND;
+    }
+}
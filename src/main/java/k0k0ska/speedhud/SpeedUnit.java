@@ -0,0 +1,17 @@
+package k0k0ska.speedhud;
+
+final class SpeedUnit {
+    final String id;
+    final double multiplier;
+    final String displayNameKey;
+    final double greenThreshold;
+    final double yellowThreshold;
+
+    SpeedUnit(String id, double multiplier, String displayNameKey, double greenThreshold, double yellowThreshold) {
+        this.id = id;
+        this.multiplier = multiplier;
+        this.displayNameKey = displayNameKey;
+        this.greenThreshold = greenThreshold;
+        this.yellowThreshold = yellowThreshold;
+    }
+}
@@ -0,0 +1,336 @@
+package k0k0ska.speedhud;
+
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.TextComponent;
+
+/**
+ * Рабочий поток замеров. Основной поток только снимает позиции в {@link SampleBatch};
+ * обновление истории, усреднение, перевод в единицы, форматирование и сборка
+ * компонентов HUD выполняются здесь. Готовые пакеты и список стоящих на месте игроков
+ * забираются основным потоком на следующем тике.
+ * Состояние замеров принадлежит рабочему потоку и меняется только в нём.
+ */
+final class SpeedWorker {
+
+    // Action bar гаснет примерно через 3 секунды, поэтому неизменный текст периодически отправляется повторно.
+    static final int HUD_KEEPALIVE_TICKS = 40;
+
+    static final class HudPacket {
+        final UUID playerId;
+        final BaseComponent component;
+
+        HudPacket(UUID playerId, BaseComponent component) {
+            this.playerId = playerId;
+            this.component = component;
+        }
+    }
+
+    /**
+     * Последняя позиция игрока после замера. Неизменяема, поэтому читается из любого потока.
+     */
+    static final class Position {
+        final UUID worldId;
+        final double x;
+        final double y;
+        final double z;
+
+        Position(UUID worldId, double x, double y, double z) {
+            this.worldId = worldId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    private static final class HudState {
+        String lastText;
+        long lastSendTick;
+        // Значение, полоса цвета и единица последней отправки.
+        double lastDisplaySpeed;
+        int lastBand = -1;
+        String lastUnitId;
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SpeedHUD-Sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Queue<SampleBatch> pool = new ConcurrentLinkedQueue<>();
+    private final Queue<HudPacket> outbound = new ConcurrentLinkedQueue<>();
+    private final Queue<UUID> idle = new ConcurrentLinkedQueue<>();
+    // Публикуется рабочим потоком после каждого замера, читается из любого потока.
+    private final Map<UUID, Position> positions = new ConcurrentHashMap<>();
+
+    // Поля ниже используются только рабочим потоком.
+    private final Map<UUID, SpeedSampleState> samples = new HashMap<>();
+    private final RecordingEngine recording = new RecordingEngine();
+    private final Map<UUID, HudState> hudStates = new HashMap<>();
+    private final DecimalFormat format = new DecimalFormat("0.00");
+    private final StringBuffer buffer = new StringBuffer();
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    private int historySize;
+    private boolean trackIdle;
+    private boolean adaptiveHud;
+    private double hudMinChange;
+    private int hudSteadyIntervalTicks;
+
+    private final PluginMetrics metrics;
+    private final SpeedApiService api;
+    private volatile HudFormatCache hudFormat;
+    private volatile SpeedStatsStore speedStats;
+
+    SpeedWorker(PluginMetrics metrics, SpeedApiService api) {
+        this.metrics = metrics;
+        this.api = api;
+    }
+
+    void setHudFormat(HudFormatCache hudFormat) {
+        this.hudFormat = hudFormat;
+        executor.execute(hudStates::clear);
+    }
+
+    /**
+     * Хранилище статистики по времени, в которое пишутся замеры движущихся игроков; null - не писать.
+     */
+    void setSpeedStats(SpeedStatsStore speedStats) {
+        this.speedStats = speedStats;
+    }
+
+    void configure(int historySize, int recorderHistorySize, boolean trackIdle) {
+        executor.execute(() -> {
+            if (this.historySize != historySize) {
+                samples.clear();
+                positions.clear();
+            }
+            this.historySize = historySize;
+            recording.configure(recorderHistorySize);
+            this.trackIdle = trackIdle;
+        });
+    }
+
+    /**
+     * Адаптивная отправка HUD: пока полоса цвета и единица не меняются, а скорость изменилась
+     * меньше чем на minChange (в единицах HUD), обновление отправляется не чаще раза в steadyIntervalTicks.
+     */
+    void configureHud(boolean adaptive, double minChange, int steadyIntervalTicks) {
+        executor.execute(() -> {
+            this.adaptiveHud = adaptive;
+            this.hudMinChange = minChange;
+            this.hudSteadyIntervalTicks = steadyIntervalTicks;
+        });
+    }
+
+    SampleBatch acquireBatch(long tick) {
+        SampleBatch batch = pool.poll();
+        if (batch == null) {
+            batch = new SampleBatch();
+        }
+        batch.reset(tick);
+        return batch;
+    }
+
+    void submit(SampleBatch batch) {
+        if (batch.size == 0) {
+            pool.offer(batch);
+            return;
+        }
+        executor.execute(() -> {
+            process(batch);
+            pool.offer(batch);
+        });
+    }
+
+    HudPacket pollPacket() {
+        return outbound.poll();
+    }
+
+    UUID pollIdle() {
+        return idle.poll();
+    }
+
+    /**
+     * Забывает позицию игрока, чтобы следующий замер не сравнивался с устаревшей точкой.
+     */
+    void resetSampler(UUID playerId) {
+        executor.execute(() -> {
+            SpeedSampleState state = samples.get(playerId);
+            if (state != null) {
+                state.reset();
+            }
+            positions.remove(playerId);
+        });
+    }
+
+    /**
+     * Забывает только позицию игрока после телепорта или возрождения, сохраняя историю скоростей.
+     */
+    void forgetPosition(UUID playerId) {
+        executor.execute(() -> {
+            SpeedSampleState state = samples.get(playerId);
+            if (state != null) {
+                state.forgetPosition();
+            }
+            positions.remove(playerId);
+            recording.forgetPosition(playerId);
+        });
+    }
+
+    /**
+     * Удаляет всё состояние вышедшего игрока, кроме незавершённой записи.
+     */
+    void forget(UUID playerId) {
+        positions.remove(playerId);
+        api.forget(playerId);
+        executor.execute(() -> {
+            samples.remove(playerId);
+            hudStates.remove(playerId);
+            // Повторно: замер, отправленный до выхода, мог успеть опубликовать снимок и позицию.
+            positions.remove(playerId);
+            api.forget(playerId);
+        });
+    }
+
+    void startRecording(UUID playerId) {
+        executor.execute(() -> recording.start(playerId));
+    }
+
+    /**
+     * Заканчивает запись после обработки уже отправленных замеров.
+     * Future завершается в рабочем потоке; null, если записи не было.
+     */
+    CompletableFuture<RecordingEngine.Run> stopRecording(UUID playerId) {
+        CompletableFuture<RecordingEngine.Run> result = new CompletableFuture<>();
+        executor.execute(() -> result.complete(recording.finish(playerId)));
+        return result;
+    }
+
+    /**
+     * Последние позиции игроков. Читается из других потоков, значения могут отставать на один замер.
+     */
+    Map<UUID, Position> positions() {
+        return positions;
+    }
+
+    /**
+     * Останавливает рабочий поток, дождавшись уже поставленных задач.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Вызывается рабочим потоком; бенчмарки вызывают напрямую после configure().
+    void process(SampleBatch batch) {
+        long start = System.nanoTime();
+        SpeedStatsStore speedStats = this.speedStats;
+        long now = speedStats == null ? 0L : System.currentTimeMillis();
+        for (int i = 0; i < batch.size; i++) {
+            UUID playerId = batch.playerIds[i];
+
+            SamplingPolicy policy = batch.policies[i];
+            if (batch.kinds[i] == SampleBatch.KIND_RECORDER) {
+                recording.sample(playerId, batch.hasWorld[i], batch.worldMost[i], batch.worldLeast[i],
+                        batch.xs[i], batch.ys[i], batch.zs[i], batch.tick,
+                        policy.horizontalOnly, policy.maxSpeedMs, batch.velocities[i]);
+                continue;
+            }
+
+            SpeedSampleState state = samples.get(playerId);
+            if (state == null) {
+                state = new SpeedSampleState(historySize);
+                samples.put(playerId, state);
+            }
+            double avgSpeed = state.sample(batch.hasWorld[i], batch.worldMost[i], batch.worldLeast[i],
+                    batch.xs[i], batch.ys[i], batch.zs[i], batch.tick,
+                    policy.horizontalOnly, policy.maxSpeedMs, batch.velocities[i]);
+            api.publish(playerId, state.lastSpeed(), avgSpeed, batch.tick);
+            publishPosition(playerId, state);
+            if (speedStats != null && state.lastAccepted() && state.lastSpeed() > 0.0) {
+                speedStats.record(playerId, state.lastSpeed(), now);
+            }
+
+            SpeedUnit unit = batch.hudUnits[i];
+            if (unit != null) {
+                renderHud(playerId, unit, avgSpeed, batch.tick);
+            }
+            if (trackIdle && state.isIdle()) {
+                idle.offer(playerId);
+            }
+        }
+        metrics.playersSampled.add(batch.size);
+        metrics.record(PluginMetrics.PHASE_WORKER, start);
+    }
+
+    private void publishPosition(UUID playerId, SpeedSampleState state) {
+        if (!state.hasLastPosition()) {
+            positions.remove(playerId);
+            return;
+        }
+        Position previous = positions.get(playerId);
+        // Стоящий на месте игрок не создаёт новых объектов на каждый замер.
+        if (previous == null || previous.x != state.lastX() || previous.y != state.lastY() || previous.z != state.lastZ()
+                || !state.isLastWorld(previous.worldId)) {
+            positions.put(playerId, new Position(state.lastWorldId(), state.lastX(), state.lastY(), state.lastZ()));
+        }
+    }
+
+    private void renderHud(UUID playerId, SpeedUnit unit, double avgSpeed, long tick) {
+        double displaySpeed = avgSpeed * unit.multiplier;
+
+        int band;
+        if (displaySpeed < unit.greenThreshold) {
+            band = HudFormatCache.BAND_GREEN;
+        } else if (displaySpeed < unit.yellowThreshold) {
+            band = HudFormatCache.BAND_YELLOW;
+        } else {
+            band = HudFormatCache.BAND_RED;
+        }
+
+        HudFormatCache hud = hudFormat;
+        buffer.setLength(0);
+        buffer.append(hud.prefix(band));
+        format.format(displaySpeed, buffer, fieldPosition);
+        buffer.append(hud.unitSuffix(unit.id));
+
+        HudState hudState = hudStates.get(playerId);
+        if (hudState == null) {
+            hudState = new HudState();
+            hudStates.put(playerId, hudState);
+        }
+        boolean unchanged = hudState.lastText != null && hudState.lastText.contentEquals(buffer);
+        long sinceSend = tick - hudState.lastSendTick;
+        boolean steady = adaptiveHud && band == hudState.lastBand && unit.id.equals(hudState.lastUnitId)
+                && Math.abs(displaySpeed - hudState.lastDisplaySpeed) < hudMinChange;
+        if ((unchanged && sinceSend < HUD_KEEPALIVE_TICKS) || (steady && sinceSend < hudSteadyIntervalTicks)) {
+            metrics.sendsSkipped.increment();
+            return;
+        }
+        if (!unchanged) {
+            hudState.lastText = buffer.toString();
+        }
+        hudState.lastSendTick = tick;
+        hudState.lastDisplaySpeed = displaySpeed;
+        hudState.lastBand = band;
+        hudState.lastUnitId = unit.id;
+        outbound.offer(new HudPacket(playerId, new TextComponent(hudState.lastText)));
+    }
+}
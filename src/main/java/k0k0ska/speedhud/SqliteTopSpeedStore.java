@@ -0,0 +1,593 @@
+package k0k0ska.speedhud;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Хранилище рекордов во встроенной базе SQLite (topspeed.db). В памяти держатся только
+ * ещё не записанные записи, поэтому время запуска и расход памяти не зависят от числа рекордов.
+ * В top_speeds лежит лучшая запись игрока, в top_speed_runs - каждая запись, побившая личный рекорд.
+ * Все обращения к базе выполняет один поток; записи, накопленные до его запуска,
+ * записываются одной пачкой в одной транзакции. Драйвер SQLite входит в состав сервера Spigot.
+ * При первом запуске переносит рекорды файлового хранилища (topspeed.bin или topspeed.yml и журнал).
+ */
+final class SqliteTopSpeedStore implements TopSpeedStorage {
+
+    private static final String DRIVER = "org.sqlite.JDBC";
+
+    private static final String UPSERT = "INSERT INTO top_speeds "
+            + "(player_name, player_uuid, speed_ms, unit_id, avg_speed_ms, duration_ticks, updated_at) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT(player_name) DO UPDATE SET "
+            + "player_uuid = COALESCE(excluded.player_uuid, player_uuid), speed_ms = excluded.speed_ms, unit_id = excluded.unit_id, "
+            + "avg_speed_ms = excluded.avg_speed_ms, duration_ticks = excluded.duration_ticks, updated_at = excluded.updated_at";
+    private static final String INSERT_RUN = "INSERT INTO top_speed_runs "
+            + "(player_name, player_uuid, peak_speed_ms, avg_speed_ms, duration_ticks, unit_id, recorded_at) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_IF_ABSENT = "INSERT OR IGNORE INTO top_speeds "
+            + "(player_name, player_uuid, speed_ms, unit_id, avg_speed_ms, duration_ticks, updated_at) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String BEST = "SELECT speed_ms FROM top_speeds WHERE player_name = ?";
+    private static final String BEST_ENTRY = "SELECT speed_ms, unit_id FROM top_speeds WHERE player_name = ?";
+    private static final String ALL = "SELECT player_name, player_uuid, speed_ms, unit_id, avg_speed_ms, duration_ticks "
+            + "FROM top_speeds";
+    private static final String COUNT = "SELECT COUNT(*) FROM top_speeds";
+    // Порядок тот же, что и в LeaderboardIndex: скорость по убыванию, при равенстве - имя.
+    // Запросы ниже - диапазоны индекса top_speeds_speed без OR, который SQLite не может провести по индексу.
+    // Ключ записи на позиции offset: пропускаются только записи индекса, без чтения таблицы.
+    private static final String PAGE_KEY = "SELECT speed_ms, player_name FROM top_speeds "
+            + "ORDER BY speed_ms DESC, player_name LIMIT 1 OFFSET ?";
+    // Страница с ключа (speed_ms, player_name): сначала остаток игроков с той же скоростью, затем более медленные.
+    private static final String PAGE_TIED = "SELECT player_name, speed_ms, unit_id FROM top_speeds "
+            + "WHERE speed_ms = ? AND player_name >= ? ORDER BY player_name LIMIT ?";
+    private static final String PAGE_SLOWER = "SELECT player_name, speed_ms, unit_id FROM top_speeds "
+            + "WHERE speed_ms < ? ORDER BY speed_ms DESC, player_name LIMIT ?";
+    // Число записей перед (speed_ms, player_name): подсчёт по индексу, таблица не читается.
+    private static final String RANK = "SELECT (SELECT COUNT(*) FROM top_speeds WHERE speed_ms > ?) "
+            + "+ (SELECT COUNT(*) FROM top_speeds WHERE speed_ms = ? AND player_name < ?) + 1";
+    // Диапазон [prefix, prefix + '\uffff') по индексу top_speeds_name_nocase: читается не больше limit строк.
+    private static final String NAMES = "SELECT player_name FROM top_speeds "
+            + "WHERE player_name >= ? COLLATE NOCASE AND player_name < ? COLLATE NOCASE "
+            + "ORDER BY player_name COLLATE NOCASE LIMIT ?";
+
+    private static final class Pending {
+        final UUID playerId;
+        final String playerName;
+        final RecordingEngine.Run run;
+        final String unitId;
+        final long recordedAt;
+        final CompletableFuture<RunResult> result = new CompletableFuture<>();
+
+        Pending(UUID playerId, String playerName, RecordingEngine.Run run, String unitId, long recordedAt) {
+            this.playerId = playerId;
+            this.playerName = playerName;
+            this.run = run;
+            this.unitId = unitId;
+            this.recordedAt = recordedAt;
+        }
+    }
+
+    private final File dataFolder;
+    private final File databaseFile;
+    private final Logger logger;
+    private final String saveFailedMessage;
+    private final PluginMetrics metrics;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SpeedHUD-TopSpeed-Database");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Поля ниже используются только потоком базы.
+    private Connection connection;
+    // Число строк top_speeds; -1 - не посчитано. Меняется вместе с записью, так что COUNT(*)
+    // выполняется один раз после открытия базы или загрузки YAML.
+    private int rowCount = -1;
+    // Ключ записи, следующей за последней выданной страницей: следующая страница начинается
+    // с него, без пропуска offset записей. -1 - ключа нет; сбрасывается при любой записи.
+    private int cursorOffset = -1;
+    private double cursorSpeedMs;
+    private String cursorName;
+
+    SqliteTopSpeedStore(File dataFolder, Logger logger, String saveFailedMessage, PluginMetrics metrics) {
+        this.dataFolder = dataFolder;
+        this.databaseFile = new File(dataFolder, "topspeed.db");
+        this.logger = logger;
+        this.saveFailedMessage = saveFailedMessage;
+        this.metrics = metrics;
+    }
+
+    static boolean isDriverAvailable() {
+        try {
+            Class.forName(DRIVER);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Открывает базу и переносит старые рекорды в потоке базы; не ждёт завершения.
+     * Запросы, пришедшие раньше, выполнятся после открытия.
+     */
+    @Override
+    public void load(long compactIntervalSeconds) {
+        executor.execute(() -> {
+            try {
+                open();
+                migrateYaml();
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "Не удалось открыть базу рекордов " + databaseFile.getName() + ".", e);
+                closeConnection();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<RunResult> submitRun(UUID playerId, String playerName, RecordingEngine.Run run, String unitId) {
+        Pending record = new Pending(playerId, playerName, run, unitId, System.currentTimeMillis());
+        pending.offer(record);
+        if (flushScheduled.compareAndSet(false, true)) {
+            executor.execute(this::flush);
+        }
+        return record.result;
+    }
+
+    @Override
+    public CompletableFuture<Page> page(int offset, int limit) {
+        return query(() -> {
+            int total = count();
+            List<LeaderboardIndex.Entry> entries = new ArrayList<>();
+            if (offset < 0 || offset >= total || limit <= 0) {
+                return new Page(total, entries);
+            }
+            if (offset != cursorOffset) {
+                try (PreparedStatement statement = connection.prepareStatement(PAGE_KEY)) {
+                    statement.setInt(1, offset);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        if (!rows.next()) {
+                            return new Page(total, entries);
+                        }
+                        cursorSpeedMs = rows.getDouble(1);
+                        cursorName = rows.getString(2);
+                    }
+                }
+            }
+            // Лишняя запись - ключ начала следующей страницы.
+            int wanted = limit + 1;
+            try (PreparedStatement tied = connection.prepareStatement(PAGE_TIED)) {
+                tied.setDouble(1, cursorSpeedMs);
+                tied.setString(2, cursorName);
+                tied.setInt(3, wanted);
+                readEntries(tied, entries);
+            }
+            if (entries.size() < wanted) {
+                try (PreparedStatement slower = connection.prepareStatement(PAGE_SLOWER)) {
+                    slower.setDouble(1, cursorSpeedMs);
+                    slower.setInt(2, wanted - entries.size());
+                    readEntries(slower, entries);
+                }
+            }
+            cursorOffset = -1;
+            if (entries.size() == wanted) {
+                LeaderboardIndex.Entry next = entries.remove(limit);
+                cursorOffset = offset + limit;
+                cursorSpeedMs = next.speedMs;
+                cursorName = next.playerName;
+            }
+            return new Page(total, entries);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Rank> rank(String playerName) {
+        return query(() -> {
+            int total = count();
+            LeaderboardIndex.Entry entry = selectEntry(playerName);
+            if (entry == null) {
+                return new Rank(-1, total, null);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(RANK)) {
+                statement.setDouble(1, entry.speedMs);
+                statement.setDouble(2, entry.speedMs);
+                statement.setString(3, playerName);
+                try (ResultSet rows = statement.executeQuery()) {
+                    rows.next();
+                    return new Rank(rows.getInt(1), total, entry);
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<LeaderboardIndex.Entry> personalBest(String playerName) {
+        return query(() -> selectEntry(playerName));
+    }
+
+    private LeaderboardIndex.Entry selectEntry(String playerName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(BEST_ENTRY)) {
+            statement.setString(1, playerName);
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() ? new LeaderboardIndex.Entry(playerName, rows.getDouble(1), rows.getString(2)) : null;
+            }
+        }
+    }
+
+    private static void readEntries(PreparedStatement statement, List<LeaderboardIndex.Entry> entries) throws SQLException {
+        try (ResultSet rows = statement.executeQuery()) {
+            while (rows.next()) {
+                entries.add(new LeaderboardIndex.Entry(rows.getString(1), rows.getDouble(2), rows.getString(3)));
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<String>> playerNames(String prefix, int limit) {
+        return query(() -> {
+            List<String> names = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(NAMES)) {
+                statement.setString(1, prefix);
+                statement.setString(2, prefix + '\uffff');
+                statement.setInt(3, limit);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        names.add(rows.getString(1));
+                    }
+                }
+            }
+            return names;
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.execute(this::flush);
+        executor.execute(this::closeConnection);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe(saveFailedMessage);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Query<T> {
+        T run() throws SQLException;
+    }
+
+    private <T> CompletableFuture<T> query(Query<T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            // Сначала дописываем накопленные рекорды, чтобы запрос их уже видел.
+            flush();
+            if (connection == null) {
+                result.completeExceptionally(new SQLException("База рекордов не открыта."));
+                return;
+            }
+            try {
+                result.complete(query.run());
+            } catch (SQLException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            metrics.record(PluginMetrics.PHASE_QUERY, start);
+        });
+        return result;
+    }
+
+    private void open() throws SQLException {
+        if (!dataFolder.exists()) {
+            dataFolder.mkdirs();
+        }
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("CREATE TABLE IF NOT EXISTS top_speeds ("
+                    + "player_name TEXT PRIMARY KEY, "
+                    + "player_uuid TEXT, "
+                    + "speed_ms REAL NOT NULL, "
+                    + "unit_id TEXT, "
+                    + "avg_speed_ms REAL NOT NULL DEFAULT 0, "
+                    + "duration_ticks INTEGER NOT NULL DEFAULT 0, "
+                    + "updated_at INTEGER NOT NULL)");
+            statement.execute("CREATE INDEX IF NOT EXISTS top_speeds_speed ON top_speeds (speed_ms DESC, player_name)");
+            statement.execute("CREATE INDEX IF NOT EXISTS top_speeds_uuid ON top_speeds (player_uuid)");
+            statement.execute("CREATE INDEX IF NOT EXISTS top_speeds_name_nocase ON top_speeds (player_name COLLATE NOCASE)");
+            statement.execute("CREATE TABLE IF NOT EXISTS top_speed_runs ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "player_name TEXT NOT NULL, "
+                    + "player_uuid TEXT, "
+                    + "peak_speed_ms REAL NOT NULL, "
+                    + "avg_speed_ms REAL NOT NULL, "
+                    + "duration_ticks INTEGER NOT NULL, "
+                    + "unit_id TEXT, "
+                    + "recorded_at INTEGER NOT NULL)");
+            statement.execute("CREATE INDEX IF NOT EXISTS top_speed_runs_player ON top_speed_runs (player_name, recorded_at)");
+            statement.execute("CREATE INDEX IF NOT EXISTS top_speed_runs_uuid ON top_speed_runs (player_uuid)");
+        }
+    }
+
+    /**
+     * Однократный перенос рекордов файлового хранилища (вместе с несвёрнутым журналом).
+     * Уже существующие в базе рекорды не перезаписываются; после переноса снимок
+     * переименовывается с суффиксом .migrated.
+     */
+    private void migrateYaml() throws SQLException {
+        TopSpeedStore legacy = new TopSpeedStore(dataFolder, logger, saveFailedMessage, metrics);
+        if (!legacy.hasData()) {
+            return;
+        }
+        legacy.load(0L);
+        // close() сворачивает журнал и topspeed.yml в снимок, так что переименовать остаётся только его.
+        legacy.close();
+        File snapshotFile = legacy.getSnapshotFile();
+
+        long now = System.currentTimeMillis();
+        int[] count = new int[1];
+        rowCount = -1;
+        cursorOffset = -1;
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_IF_ABSENT)) {
+            SQLException[] failure = new SQLException[1];
+            legacy.forEachRecord((playerName, record) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    bindRecord(statement, playerName, record, now);
+                    statement.addBatch();
+                    count[0]++;
+                } catch (SQLException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            Files.move(snapshotFile.toPath(), new File(dataFolder, snapshotFile.getName() + ".migrated").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось переименовать " + snapshotFile.getName() + " после переноса в базу.", e);
+        }
+        if (count[0] > 0) {
+            logger.info("Перенесено рекордов из " + snapshotFile.getName() + " в " + databaseFile.getName() + ": " + count[0]);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> exportYaml(File file) {
+        return query(() -> {
+            TopSpeedYaml.Writer yaml = new TopSpeedYaml.Writer();
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery(ALL)) {
+                while (rows.next()) {
+                    String uuid = rows.getString(2);
+                    yaml.add(rows.getString(1), new TopSpeedStore.Record(rows.getDouble(3), rows.getString(4),
+                            rows.getDouble(5), rows.getInt(6), uuid == null ? null : UUID.fromString(uuid)));
+                }
+            }
+            try {
+                return yaml.save(file);
+            } catch (IOException e) {
+                throw new SQLException("Не удалось записать " + file.getName() + ".", e);
+            }
+        });
+    }
+
+    /**
+     * Загружает рекорды одной транзакцией. История записей (top_speed_runs) не меняется.
+     */
+    @Override
+    public CompletableFuture<Integer> importYaml(File file) {
+        return query(() -> importNow(TopSpeedYaml.read(file)));
+    }
+
+    @Override
+    public CompletableFuture<Integer> importRecords(Map<String, TopSpeedStore.Record> records) {
+        return query(() -> importNow(records));
+    }
+
+    // Только поток базы.
+    private int importNow(Map<String, TopSpeedStore.Record> records) throws SQLException {
+        long now = System.currentTimeMillis();
+        rowCount = -1;
+        cursorOffset = -1;
+        connection.setAutoCommit(false);
+        try (PreparedStatement upsert = connection.prepareStatement(UPSERT)) {
+            for (Map.Entry<String, TopSpeedStore.Record> entry : records.entrySet()) {
+                bindRecord(upsert, entry.getKey(), entry.getValue(), now);
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        return records.size();
+    }
+
+    /**
+     * Параметры в порядке столбцов UPSERT и INSERT_IF_ABSENT.
+     */
+    private static void bindRecord(PreparedStatement statement, String playerName, TopSpeedStore.Record record, long now)
+            throws SQLException {
+        statement.setString(1, playerName);
+        statement.setString(2, record.playerId == null ? null : record.playerId.toString());
+        statement.setDouble(3, record.speedMs);
+        statement.setString(4, record.unitId);
+        statement.setDouble(5, record.averageSpeedMs);
+        statement.setInt(6, record.durationTicks);
+        statement.setLong(7, now);
+    }
+
+    private int count() throws SQLException {
+        if (rowCount < 0) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery(COUNT)) {
+                rowCount = rows.next() ? rows.getInt(1) : 0;
+            }
+        }
+        return rowCount;
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Pending> batch = new ArrayList<>();
+        Pending record;
+        while ((record = pending.poll()) != null) {
+            batch.add(record);
+        }
+        if (connection == null) {
+            SQLException failure = new SQLException("База рекордов не открыта.");
+            logger.log(Level.SEVERE, saveFailedMessage, failure);
+            for (Pending failed : batch) {
+                failed.result.completeExceptionally(failure);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        int written = 0;
+        int added = 0;
+        // Результаты отдаём только после фиксации транзакции.
+        List<RunResult> results = new ArrayList<>(batch.size());
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement best = connection.prepareStatement(BEST);
+                 PreparedStatement upsert = connection.prepareStatement(UPSERT);
+                 PreparedStatement insertRun = connection.prepareStatement(INSERT_RUN)) {
+                // Пишет только этот поток, поэтому лучший результат можно сравнить до записи;
+                // несколько записей одного игрока в пачке сравниваются между собой.
+                Map<String, Double> bests = new HashMap<>();
+                for (Pending run : batch) {
+                    Double current = bests.get(run.playerName);
+                    if (current == null) {
+                        current = selectBest(best, run.playerName);
+                        if (current == null) {
+                            added++;
+                        }
+                    }
+                    if (current != null && run.run.peakSpeedMs <= current) {
+                        results.add(new RunResult(false, current));
+                        continue;
+                    }
+                    bests.put(run.playerName, run.run.peakSpeedMs);
+                    results.add(new RunResult(true, run.run.peakSpeedMs));
+
+                    String playerId = run.playerId == null ? null : run.playerId.toString();
+                    upsert.setString(1, run.playerName);
+                    upsert.setString(2, playerId);
+                    upsert.setDouble(3, run.run.peakSpeedMs);
+                    upsert.setString(4, run.unitId);
+                    upsert.setDouble(5, run.run.averageSpeedMs);
+                    upsert.setInt(6, run.run.durationTicks);
+                    upsert.setLong(7, run.recordedAt);
+                    upsert.addBatch();
+
+                    insertRun.setString(1, run.playerName);
+                    insertRun.setString(2, playerId);
+                    insertRun.setDouble(3, run.run.peakSpeedMs);
+                    insertRun.setDouble(4, run.run.averageSpeedMs);
+                    insertRun.setInt(5, run.run.durationTicks);
+                    insertRun.setString(6, run.unitId);
+                    insertRun.setLong(7, run.recordedAt);
+                    insertRun.addBatch();
+                    written++;
+                }
+                if (written > 0) {
+                    upsert.executeBatch();
+                    insertRun.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            rowCount = -1;
+            cursorOffset = -1;
+            logger.log(Level.SEVERE, saveFailedMessage, e);
+            for (Pending failed : batch) {
+                failed.result.completeExceptionally(e);
+            }
+            return;
+        }
+        if (written > 0) {
+            cursorOffset = -1;
+            if (rowCount >= 0) {
+                rowCount += added;
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(results.get(i));
+        }
+        metrics.saves.add(written);
+        metrics.record(PluginMetrics.PHASE_SAVE, start);
+    }
+
+    private static Double selectBest(PreparedStatement statement, String playerName) throws SQLException {
+        statement.setString(1, playerName);
+        try (ResultSet rows = statement.executeQuery()) {
+            return rows.next() ? rows.getDouble(1) : null;
+        }
+    }
+
+    private void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Не удалось закрыть базу рекордов.", e);
+        }
+        connection = null;
+    }
+}
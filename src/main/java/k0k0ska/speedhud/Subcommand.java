@@ -0,0 +1,36 @@
+package k0k0ska.speedhud;
+
+/**
+ * Подкоманды /speedhud. Порядок совпадает с именами подкоманд в {@link MessageKey.Help#PARAMETERS}.
+ */
+enum Subcommand {
+
+    ENABLE("enable", "on", "speedhud.toggle"),
+    DISABLE("disable", "off", "speedhud.toggle"),
+    UNIT("toggle_unit", "unit", null),
+    RELOAD("reload", "reload", "speedhud.reload"),
+    HELP("help", "help", null),
+    STARTRECORDSPEED("startrecordspeed", "startrecordspeed", "speedhud.startrecordspeed"),
+    TOPSPEED("topspeed", "topspeed", "speedhud.topspeed"),
+    TOPTOGGLEUNIT("toptoggleunit", "toptoggleunit", "speedhud.toptoggleunit"),
+    MYRANK("myrank", "myrank", "speedhud.topspeed"),
+    STATS("stats", "stats", "speedhud.stats"),
+    EXPORT("export", "export", "speedhud.transfer"),
+    IMPORT("import", "import", "speedhud.transfer"),
+    HISTORY("history", "history", "speedhud.history");
+
+    // Ключ в секции subcommands config.yml и имя, если он не задан.
+    final String configKey;
+    final String defaultName;
+    // Право, без которого подкоманда не предлагается в подсказках; null - доступна всем.
+    final String permission;
+    // Фаза в /speedhud stats, собранная заранее, чтобы не склеивать строку на каждую команду.
+    final String metricName;
+
+    Subcommand(String configKey, String defaultName, String permission) {
+        this.configKey = configKey;
+        this.defaultName = defaultName;
+        this.permission = permission;
+        this.metricName = PluginMetrics.PHASE_COMMAND_PREFIX + name().toLowerCase();
+    }
+}
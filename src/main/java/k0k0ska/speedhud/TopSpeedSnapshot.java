@@ -0,0 +1,361 @@
+package k0k0ska.speedhud;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Бинарный снимок рекордов topspeed.bin, читаемый через отображение файла в память.
+ * Записи фиксированной длины лежат в порядке рейтинга (скорость по убыванию, затем имя),
+ * поэтому страница рейтинга и место игрока читаются прямо из файла без загрузки в кучу.
+ * За записями идут хеш-таблица имя -> номер записи, номера записей по алфавиту имён
+ * (для подсказок по началу имени), таблица имён и таблица единиц.
+ * <pre>
+ * заголовок (40 байт): magic, version, count, hashSlots, unitCount, 0, namesOffset (long), unitsOffset (long)
+ * запись (40 байт):    uuidMost, uuidLeast, speedMs (double), avgSpeedMs (float), durationTicks,
+ *                      unitIndex (short, -1 - нет), nameLength (short), nameOffset
+ * хеш-таблица:         hashSlots * int, -1 - пусто
+ * по алфавиту:         count * int, имена сравниваются в нижнем регистре
+ * имена:               байты UTF-8 подряд
+ * единицы:             unitCount * (short длина, байты UTF-8)
+ * </pre>
+ * Неизменяем; чтение из нескольких потоков безопасно.
+ */
+final class TopSpeedSnapshot {
+
+    private static final int MAGIC = 0x53484231;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final int RECORD_BYTES = 40;
+
+    static final TopSpeedSnapshot EMPTY = new TopSpeedSnapshot(ByteBuffer.allocate(HEADER_BYTES), 0, 0, 0L, new String[0]);
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int hashSlots;
+    private final long namesOffset;
+    private final String[] units;
+
+    private TopSpeedSnapshot(ByteBuffer buffer, int count, int hashSlots, long namesOffset, String[] units) {
+        this.buffer = buffer;
+        this.count = count;
+        this.hashSlots = hashSlots;
+        this.namesOffset = namesOffset;
+        this.units = units;
+    }
+
+    /**
+     * Отображает файл в память. Возвращает {@link #EMPTY}, если файла нет.
+     */
+    static TopSpeedSnapshot open(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return EMPTY;
+        }
+        MappedByteBuffer buffer;
+        int count;
+        int hashSlots;
+        int unitCount;
+        long namesOffset;
+        long unitsOffset;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Заголовок проверяется до отображения: неудачное отображение держит файл до сборки мусора,
+            // и на Windows повреждённый снимок потом нельзя было бы переименовать.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Читаем заголовок целиком.
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Файл " + file.getName() + " не является снимком рекордов SpeedHUD.");
+            }
+            count = header.getInt(8);
+            hashSlots = header.getInt(12);
+            unitCount = header.getInt(16);
+            namesOffset = header.getLong(24);
+            unitsOffset = header.getLong(32);
+            if (count < 0 || hashSlots <= 0 || unitCount < 0
+                    || (long) HEADER_BYTES + (long) count * RECORD_BYTES + (long) hashSlots * Integer.BYTES
+                            + (long) count * Integer.BYTES != namesOffset
+                    || namesOffset > unitsOffset || unitsOffset > channel.size()) {
+                throw new IOException("Снимок рекордов " + file.getName() + " повреждён.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        String[] units = new String[unitCount];
+        try {
+            int position = (int) unitsOffset;
+            for (int i = 0; i < unitCount; i++) {
+                int length = buffer.getShort(position) & 0xFFFF;
+                units[i] = decode(buffer, position + Short.BYTES, length);
+                position += Short.BYTES + length;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Снимок рекордов " + file.getName() + " повреждён.", e);
+        }
+        return new TopSpeedSnapshot(buffer, count, hashSlots, namesOffset, units);
+    }
+
+    int size() {
+        return count;
+    }
+
+
+    double speedMs(int index) {
+        return buffer.getDouble(record(index) + 16);
+    }
+
+    double averageSpeedMs(int index) {
+        return buffer.getFloat(record(index) + 24);
+    }
+
+    int durationTicks(int index) {
+        return buffer.getInt(record(index) + 28);
+    }
+
+    String unitId(int index) {
+        int unit = buffer.getShort(record(index) + 32);
+        return unit < 0 ? null : units[unit];
+    }
+
+    UUID playerId(int index) {
+        int base = record(index);
+        long most = buffer.getLong(base);
+        long least = buffer.getLong(base + 8);
+        return most == 0L && least == 0L ? null : new UUID(most, least);
+    }
+
+    String playerName(int index) {
+        int base = record(index);
+        return decode(buffer, (int) namesOffset + buffer.getInt(base + 36), buffer.getShort(base + 34) & 0xFFFF);
+    }
+
+    TopSpeedStore.Record record(int index, UUID playerId) {
+        return new TopSpeedStore.Record(speedMs(index), unitId(index), averageSpeedMs(index), durationTicks(index), playerId);
+    }
+
+    /**
+     * Номер записи игрока или -1. Не создаёт строк при сравнении.
+     */
+    int indexOf(String playerName) {
+        if (count == 0) {
+            return -1;
+        }
+        byte[] name = playerName.getBytes(StandardCharsets.UTF_8);
+        int mask = hashSlots - 1;
+        int slotsOffset = HEADER_BYTES + count * RECORD_BYTES;
+        for (int slot = hash(playerName) & mask; ; slot = (slot + 1) & mask) {
+            int index = buffer.getInt(slotsOffset + slot * Integer.BYTES);
+            if (index < 0) {
+                return -1;
+            }
+            if (nameEquals(index, name)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Первая позиция в таблице имён по алфавиту, имя на которой в нижнем регистре не меньше lowerPrefix;
+     * с неё подряд идут все имена с этим началом.
+     */
+    int firstNameFrom(String lowerPrefix) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (playerName(nameOrder(mid)).toLowerCase().compareTo(lowerPrefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Номер записи, стоящей на позиции position в таблице имён по алфавиту.
+     */
+    int nameOrder(int position) {
+        return buffer.getInt(HEADER_BYTES + count * RECORD_BYTES + hashSlots * Integer.BYTES + position * Integer.BYTES);
+    }
+
+    /**
+     * Число записей, стоящих в рейтинге строго перед (speedMs, playerName).
+     */
+    int countBefore(double speedMs, String playerName) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, speedMs, playerName) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Сравнивает запись index с ключом в порядке рейтинга. Имя читается только при равной скорости.
+     */
+    int compare(int index, double speedMs, String playerName) {
+        int bySpeed = Double.compare(speedMs, speedMs(index));
+        return bySpeed != 0 ? bySpeed : playerName(index).compareTo(playerName);
+    }
+
+    /**
+     * Пишет новый снимок: записи base, кроме skip, вместе с changes (уже в порядке рейтинга).
+     */
+    static void write(File file, TopSpeedSnapshot base, RankedIndexSet skip, List<Map.Entry<String, TopSpeedStore.Record>> changes)
+            throws IOException {
+        int count = base.size() - skip.size() + changes.size();
+        int hashSlots = Integer.highestOneBit(Math.max(4, count * 2 - 1)) << 1;
+        int[] slots = new int[hashSlots];
+        Arrays.fill(slots, -1);
+        long namesOffset = HEADER_BYTES + (long) count * RECORD_BYTES + (long) hashSlots * Integer.BYTES + (long) count * Integer.BYTES;
+        String[] lowerNames = new String[count];
+
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        Map<String, Integer> unitIndex = new HashMap<>();
+        List<String> units = new ArrayList<>();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(hashSlots);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(namesOffset);
+            out.writeLong(0L);
+
+            int written = 0;
+            int baseIndex = 0;
+            int changeIndex = 0;
+            while (true) {
+                while (baseIndex < base.size() && skip.contains(baseIndex)) {
+                    baseIndex++;
+                }
+                boolean hasBase = baseIndex < base.size();
+                boolean hasChange = changeIndex < changes.size();
+                if (!hasBase && !hasChange) {
+                    break;
+                }
+                String name;
+                TopSpeedStore.Record record;
+                if (hasChange && (!hasBase || base.compare(baseIndex, changes.get(changeIndex).getValue().speedMs,
+                        changes.get(changeIndex).getKey()) > 0)) {
+                    name = changes.get(changeIndex).getKey();
+                    record = changes.get(changeIndex).getValue();
+                    changeIndex++;
+                } else {
+                    name = base.playerName(baseIndex);
+                    record = base.record(baseIndex, base.playerId(baseIndex));
+                    baseIndex++;
+                }
+
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                int unit = -1;
+                if (record.unitId != null) {
+                    Integer known = unitIndex.get(record.unitId);
+                    if (known == null) {
+                        known = units.size();
+                        units.add(record.unitId);
+                        unitIndex.put(record.unitId, known);
+                    }
+                    unit = known;
+                }
+                out.writeLong(record.playerId == null ? 0L : record.playerId.getMostSignificantBits());
+                out.writeLong(record.playerId == null ? 0L : record.playerId.getLeastSignificantBits());
+                out.writeDouble(record.speedMs);
+                out.writeFloat((float) record.averageSpeedMs);
+                out.writeInt(record.durationTicks);
+                out.writeShort(unit);
+                out.writeShort(nameBytes.length);
+                out.writeInt(names.size());
+                names.write(nameBytes);
+
+                int mask = hashSlots - 1;
+                int slot = hash(name) & mask;
+                while (slots[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = written;
+                lowerNames[written++] = name.toLowerCase();
+            }
+
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+            Integer[] nameOrder = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                nameOrder[i] = i;
+            }
+            Arrays.sort(nameOrder, (a, b) -> lowerNames[a].compareTo(lowerNames[b]));
+            for (int index : nameOrder) {
+                out.writeInt(index);
+            }
+            names.writeTo(out);
+            for (String unit : units) {
+                byte[] bytes = unit.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        try (RandomAccessFile header = new RandomAccessFile(file, "rw")) {
+            header.seek(16);
+            header.writeInt(units.size());
+            header.seek(32);
+            header.writeLong(namesOffset + names.size());
+        }
+    }
+
+    private int record(int index) {
+        return HEADER_BYTES + index * RECORD_BYTES;
+    }
+
+    private boolean nameEquals(int index, byte[] name) {
+        int base = record(index);
+        int length = buffer.getShort(base + 34) & 0xFFFF;
+        if (length != name.length) {
+            return false;
+        }
+        int offset = (int) namesOffset + buffer.getInt(base + 36);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(String playerName) {
+        int h = playerName.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
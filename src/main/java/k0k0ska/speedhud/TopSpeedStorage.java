@@ -0,0 +1,99 @@
+package k0k0ska.speedhud;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Хранилище рекордов скорости. Запись не блокирует вызывающий поток; запросы
+ * возвращают future, который может завершиться в потоке хранилища.
+ * Все методы вызываются из основного потока.
+ */
+interface TopSpeedStorage {
+
+    final class Page {
+        final int total;
+        final List<LeaderboardIndex.Entry> entries;
+
+        Page(int total, List<LeaderboardIndex.Entry> entries) {
+            this.total = total;
+            this.entries = entries;
+        }
+    }
+
+    final class RunResult {
+        // Запись побила личный рекорд и сохранена.
+        final boolean personalBest;
+        // Личный рекорд после этой записи, м/с.
+        final double bestSpeedMs;
+
+        RunResult(boolean personalBest, double bestSpeedMs) {
+            this.personalBest = personalBest;
+            this.bestSpeedMs = bestSpeedMs;
+        }
+    }
+
+    final class Rank {
+        // Место с 1 или -1, если у игрока нет рекорда.
+        final int rank;
+        final int total;
+        final LeaderboardIndex.Entry entry;
+
+        Rank(int rank, int total, LeaderboardIndex.Entry entry) {
+            this.rank = rank;
+            this.total = total;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Подготавливает хранилище. Вызывается один раз при включении плагина.
+     */
+    void load(long compactIntervalSeconds);
+
+    /**
+     * Сохраняет итог записи, только если его пик выше личного рекорда игрока.
+     */
+    CompletableFuture<RunResult> submitRun(UUID playerId, String playerName, RecordingEngine.Run run, String unitId);
+
+    /**
+     * Общее число рекордов и записи с offset по offset + limit в порядке рейтинга.
+     */
+    CompletableFuture<Page> page(int offset, int limit);
+
+    CompletableFuture<Rank> rank(String playerName);
+
+    /**
+     * Лучшая запись игрока или null, если её нет.
+     */
+    CompletableFuture<LeaderboardIndex.Entry> personalBest(String playerName);
+
+    /**
+     * Имена игроков из рейтинга, начинающиеся с prefix без учёта регистра, по алфавиту, не больше limit.
+     * Для подсказок команд: стоимость зависит от limit, а не от размера рейтинга.
+     */
+    CompletableFuture<List<String>> playerNames(String prefix, int limit);
+
+    /**
+     * Выгружает все рекорды в YAML. Возвращает число выгруженных записей.
+     */
+    CompletableFuture<Integer> exportYaml(File file);
+
+    /**
+     * Загружает рекорды из YAML, заменяя записи игроков с теми же именами.
+     * Возвращает число загруженных записей.
+     */
+    CompletableFuture<Integer> importYaml(File file);
+
+    /**
+     * То же, что importYaml, для уже прочитанных рекордов.
+     */
+    CompletableFuture<Integer> importRecords(Map<String, TopSpeedStore.Record> records);
+
+    /**
+     * Дописывает несохранённые рекорды и освобождает ресурсы. Блокирует до завершения записи.
+     */
+    void close();
+}
@@ -0,0 +1,652 @@
+package k0k0ska.speedhud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Файловое хранилище рекордов с отложенной записью. Основа - бинарный снимок topspeed.bin
+ * ({@link TopSpeedSnapshot}), отображённый в память; рекорды, изменившиеся после последнего
+ * снимка, держатся в памяти поверх него и дописываются отдельным потоком в журнал
+ * topspeed.journal. Поток записи периодически сворачивает журнал в новый снимок.
+ * Каждый новый снимок пишется в свой файл topspeed.N.bin (N - номер поколения), а не поверх текущего:
+ * текущий отображён в память, и Windows не даёт его заменить. При запуске читается самый новый.
+ * Для каждого игрока хранится только лучшая запись. Запросы отвечают сразу:
+ * рейтинг читается из снимка с поправкой на изменения в памяти.
+ * Методы можно вызывать из любого потока.
+ */
+final class TopSpeedStore implements TopSpeedStorage {
+
+    private static final int JOURNAL_MAGIC = 0x53484A33;
+    // topspeed.bin - поколение 0, topspeed.<N>.bin - поколение N.
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("topspeed(?:\\.(\\d+))?\\.bin");
+
+    static final class Record {
+        final double speedMs;
+        final String unitId;
+        final double averageSpeedMs;
+        final int durationTicks;
+        // null - неизвестен (записи из старых форматов).
+        final UUID playerId;
+
+        Record(double speedMs, String unitId, double averageSpeedMs, int durationTicks, UUID playerId) {
+            this.speedMs = speedMs;
+            this.unitId = unitId;
+            this.averageSpeedMs = averageSpeedMs;
+            this.durationTicks = durationTicks;
+            this.playerId = playerId;
+        }
+    }
+
+    private final File dataFolder;
+    // Файл текущего снимка; null - снимка ещё нет.
+    private volatile File snapshotFile;
+    private final File legacyYamlFile;
+    private final File journalFile;
+    private final Logger logger;
+    private final String saveFailedMessage;
+    private final PluginMetrics metrics;
+    private final ScheduledExecutorService writer;
+
+    // Поля ниже защищены монитором this.
+    private TopSpeedSnapshot snapshot = TopSpeedSnapshot.EMPTY;
+    private final Map<String, Record> overlay = new HashMap<>();
+    private final LeaderboardIndex overlayIndex = new LeaderboardIndex();
+    // Номера записей снимка, заменённых записями в памяти.
+    private RankedIndexSet superseded = new RankedIndexSet(0);
+    // Имена из overlay для подсказок; имена снимка ищутся по его таблице имён.
+    private final PrefixIndex overlayNames = new PrefixIndex();
+
+    // Поля ниже используются только потоком записи.
+    private DataOutputStream journal;
+    private int journalEntries;
+    private boolean migratingYaml;
+    private long generation;
+    // Прошлые поколения снимка. На Windows файл нельзя удалить, пока его отображение
+    // не освобождено сборщиком мусора, поэтому удаление повторяется при каждом сворачивании.
+    private final List<File> staleSnapshots = new ArrayList<>();
+    // Снимок не читается и его не удалось убрать: новые снимки не пишутся, чтобы он не был удалён
+    // как устаревший, а рекорды копятся в журнале.
+    private volatile boolean compactionDisabled;
+
+    TopSpeedStore(File dataFolder, Logger logger, String saveFailedMessage, PluginMetrics metrics) {
+        this.dataFolder = dataFolder;
+        this.legacyYamlFile = new File(dataFolder, "topspeed.yml");
+        this.journalFile = new File(dataFolder, "topspeed.journal");
+        this.logger = logger;
+        this.saveFailedMessage = saveFailedMessage;
+        this.metrics = metrics;
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SpeedHUD-TopSpeed-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Файлы, по наличию которых видно, что в папке есть данные этого хранилища.
+     */
+    boolean hasData() {
+        return !snapshotFiles().isEmpty() || legacyYamlFile.exists() || journalFile.exists();
+    }
+
+    /**
+     * Файл текущего снимка или null, если снимка нет.
+     */
+    File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Отображает самый новый читаемый снимок, проигрывает поверх него журнал и, если журнал не пуст,
+     * сразу сворачивает его. Нечитаемый снимок переименовывается в .corrupt. Если снимка ещё нет,
+     * переносит рекорды из topspeed.yml. Вызывается один раз при включении плагина.
+     */
+    @Override
+    public void load(long compactIntervalSeconds) {
+        for (File file : snapshotFiles()) {
+            generation = Math.max(generation, generationOf(file));
+            if (snapshotFile != null) {
+                staleSnapshots.add(file);
+                continue;
+            }
+            try {
+                TopSpeedSnapshot opened = TopSpeedSnapshot.open(file);
+                synchronized (this) {
+                    snapshot = opened;
+                    superseded = new RankedIndexSet(opened.size());
+                }
+                snapshotFile = file;
+            } catch (IOException e) {
+                quarantine(file, e);
+            }
+        }
+        deleteStaleSnapshots();
+
+        if (snapshotFile == null && legacyYamlFile.exists()) {
+            Map<String, Record> legacy = TopSpeedYaml.read(legacyYamlFile);
+            synchronized (this) {
+                for (Map.Entry<String, Record> entry : legacy.entrySet()) {
+                    applyLocked(entry.getKey(), entry.getValue());
+                }
+            }
+            migratingYaml = true;
+            logger.info("Рекорды из " + legacyYamlFile.getName() + " будут перенесены в снимок рекордов: " + legacy.size());
+        }
+
+        int replayed = replayJournal();
+        if (replayed > 0) {
+            logger.info("Восстановлено записей из журнала рекордов: " + replayed);
+            journalEntries = replayed;
+        }
+        if (replayed > 0 || migratingYaml) {
+            writer.execute(this::compact);
+        }
+
+        if (compactIntervalSeconds > 0) {
+            writer.scheduleWithFixedDelay(this::compact, compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Сохраняет итог записи, если он лучше личного рекорда. Стоимость для вызывающего потока -
+     * поиск в снимке и обновление данных в памяти; запись в журнал ставится в очередь.
+     */
+    @Override
+    public CompletableFuture<RunResult> submitRun(UUID playerId, String playerName, RecordingEngine.Run run, String unitId) {
+        Record record = new Record(run.peakSpeedMs, unitId, run.averageSpeedMs, run.durationTicks, playerId);
+        synchronized (this) {
+            Record current = getLocked(playerName);
+            if (current != null && run.peakSpeedMs <= current.speedMs) {
+                return CompletableFuture.completedFuture(new RunResult(false, current.speedMs));
+            }
+            applyLocked(playerName, record);
+        }
+        writer.execute(() -> append(playerName, record));
+        return CompletableFuture.completedFuture(new RunResult(true, record.speedMs));
+    }
+
+    /**
+     * Страница общего рейтинга (снимок без заменённых записей вместе с изменениями в памяти).
+     * Начало страницы ищется двоичным поиском по снимку, затем читается не больше limit записей,
+     * так что стоимость не зависит ни от номера страницы, ни от числа изменений в памяти.
+     */
+    @Override
+    public synchronized CompletableFuture<Page> page(int offset, int limit) {
+        int total = sizeLocked();
+        List<LeaderboardIndex.Entry> entries = new ArrayList<>(Math.max(0, Math.min(limit, total - offset)));
+        if (offset < 0 || offset >= total || limit <= 0) {
+            return CompletableFuture.completedFuture(new Page(total, entries));
+        }
+
+        // Первая запись снимка, перед которой в общем рейтинге стоит не меньше offset записей;
+        // недостающие до offset записи берутся из изменений в памяти.
+        int low = 0;
+        int high = snapshot.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (countBeforeBaseLocked(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int baseIndex = low;
+        Iterator<LeaderboardIndex.Entry> changes = overlayIndex.iterator(offset - (baseIndex - superseded.countBelow(baseIndex)));
+        LeaderboardIndex.Entry change = changes.hasNext() ? changes.next() : null;
+        while (entries.size() < limit) {
+            while (baseIndex < snapshot.size() && superseded.contains(baseIndex)) {
+                baseIndex++;
+            }
+            boolean hasBase = baseIndex < snapshot.size();
+            if (!hasBase && change == null) {
+                break;
+            }
+            if (change != null && (!hasBase || snapshot.compare(baseIndex, change.speedMs, change.playerName) > 0)) {
+                entries.add(change);
+                change = changes.hasNext() ? changes.next() : null;
+            } else {
+                entries.add(new LeaderboardIndex.Entry(snapshot.playerName(baseIndex), snapshot.speedMs(baseIndex),
+                        snapshot.unitId(baseIndex)));
+                baseIndex++;
+            }
+        }
+        return CompletableFuture.completedFuture(new Page(total, entries));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Rank> rank(String playerName) {
+        int total = sizeLocked();
+        Record changed = overlay.get(playerName);
+        if (changed != null) {
+            int baseBefore = snapshot.countBefore(changed.speedMs, playerName);
+            int rank = baseBefore - superseded.countBelow(baseBefore) + overlayIndex.rankOf(playerName);
+            return CompletableFuture.completedFuture(new Rank(rank, total, overlayIndex.get(playerName)));
+        }
+        int index = snapshot.indexOf(playerName);
+        if (index < 0) {
+            return CompletableFuture.completedFuture(new Rank(-1, total, null));
+        }
+        double speedMs = snapshot.speedMs(index);
+        int rank = index - superseded.countBelow(index) + overlayIndex.countBefore(speedMs, playerName) + 1;
+        return CompletableFuture.completedFuture(
+                new Rank(rank, total, new LeaderboardIndex.Entry(playerName, speedMs, snapshot.unitId(index))));
+    }
+
+    @Override
+    public synchronized CompletableFuture<LeaderboardIndex.Entry> personalBest(String playerName) {
+        Record record = getLocked(playerName);
+        return CompletableFuture.completedFuture(
+                record == null ? null : new LeaderboardIndex.Entry(playerName, record.speedMs, record.unitId));
+    }
+
+    /**
+     * Имена с началом prefix: двоичный поиск по таблице имён снимка и поиск по именам в памяти,
+     * затем слияние двух упорядоченных списков. Читается не больше limit имён из каждого источника.
+     */
+    @Override
+    public synchronized CompletableFuture<List<String>> playerNames(String prefix, int limit) {
+        String lowerPrefix = prefix.toLowerCase();
+        List<String> changed = overlayNames.complete(prefix, limit);
+        List<String> names = new ArrayList<>(Math.min(limit, 16));
+        int next = 0;
+        for (int position = snapshot.firstNameFrom(lowerPrefix); position < snapshot.size() && names.size() < limit; position++) {
+            int index = snapshot.nameOrder(position);
+            String name = snapshot.playerName(index);
+            String lowerName = name.toLowerCase();
+            if (!lowerName.startsWith(lowerPrefix)) {
+                break;
+            }
+            if (superseded.contains(index)) {
+                // Эта запись заменена записью в памяти, имя придёт из overlayNames.
+                continue;
+            }
+            while (next < changed.size() && names.size() < limit && changed.get(next).toLowerCase().compareTo(lowerName) < 0) {
+                names.add(changed.get(next++));
+            }
+            if (names.size() < limit) {
+                names.add(name);
+            }
+        }
+        while (next < changed.size() && names.size() < limit) {
+            names.add(changed.get(next++));
+        }
+        return CompletableFuture.completedFuture(names);
+    }
+
+    @Override
+    public CompletableFuture<Integer> exportYaml(File file) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        writer.execute(() -> {
+            TopSpeedYaml.Writer yaml = new TopSpeedYaml.Writer();
+            forEachRecord(yaml::add);
+            try {
+                result.complete(yaml.save(file));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Загружает рекорды из YAML, заменяя записи с теми же именами независимо от скорости.
+     */
+    @Override
+    public CompletableFuture<Integer> importYaml(File file) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        writer.execute(() -> result.complete(importNow(TopSpeedYaml.read(file))));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Integer> importRecords(Map<String, Record> records) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        writer.execute(() -> result.complete(importNow(records)));
+        return result;
+    }
+
+    // Только поток записи.
+    private int importNow(Map<String, Record> imported) {
+        synchronized (this) {
+            for (Map.Entry<String, Record> entry : imported.entrySet()) {
+                applyLocked(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Record> entry : imported.entrySet()) {
+            append(entry.getKey(), entry.getValue());
+        }
+        return imported.size();
+    }
+
+    /**
+     * Обходит все рекорды в произвольном порядке.
+     */
+    synchronized void forEachRecord(BiConsumer<String, Record> action) {
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!superseded.contains(i)) {
+                action.accept(snapshot.playerName(i), snapshot.record(i, snapshot.playerId(i)));
+            }
+        }
+        for (Map.Entry<String, Record> entry : overlay.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Сворачивает журнал и останавливает поток записи. Блокирует до завершения записи.
+     */
+    @Override
+    public void close() {
+        writer.execute(this::compact);
+        writer.execute(this::closeJournal);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe(saveFailedMessage);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Record getLocked(String playerName) {
+        Record changed = overlay.get(playerName);
+        if (changed != null) {
+            return changed;
+        }
+        int index = snapshot.indexOf(playerName);
+        return index < 0 ? null : snapshot.record(index, snapshot.playerId(index));
+    }
+
+    private void applyLocked(String playerName, Record record) {
+        if (overlay.put(playerName, record) == null) {
+            overlayNames.add(playerName);
+            int index = snapshot.indexOf(playerName);
+            if (index >= 0) {
+                superseded.add(index);
+            }
+        }
+        overlayIndex.put(playerName, record.speedMs, record.unitId);
+    }
+
+    /**
+     * Число записей общего рейтинга, стоящих строго перед записью снимка index.
+     */
+    private int countBeforeBaseLocked(int index) {
+        return index - superseded.countBelow(index)
+                + overlayIndex.countBefore(snapshot.speedMs(index), snapshot.playerName(index));
+    }
+
+    private int sizeLocked() {
+        return snapshot.size() - superseded.size() + overlay.size();
+    }
+
+    private int replayJournal() {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        int count = 0;
+        boolean recognized = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            try {
+                recognized = in.readInt() == JOURNAL_MAGIC;
+            } catch (EOFException e) {
+                return 0;
+            }
+            while (recognized) {
+                String playerName;
+                Record record;
+                try {
+                    playerName = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    record = readJournalRecord(in);
+                } catch (EOFException e) {
+                    logger.warning("Журнал рекордов обрезан на последней записи, она будет пропущена.");
+                    break;
+                }
+                synchronized (this) {
+                    applyLocked(playerName, record);
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось полностью прочитать журнал рекордов.", e);
+        }
+        if (!recognized) {
+            // Файл уже закрыт, иначе на Windows его не переименовать.
+            quarantineJournal();
+        }
+        return count;
+    }
+
+    private static Record readJournalRecord(DataInputStream in) throws IOException {
+        double speedMs = in.readDouble();
+        String unitId = in.readUTF();
+        double averageSpeedMs = in.readDouble();
+        int durationTicks = in.readInt();
+        UUID playerId = in.readBoolean() ? new UUID(in.readLong(), in.readLong()) : null;
+        return new Record(speedMs, unitId.isEmpty() ? null : unitId, averageSpeedMs, durationTicks, playerId);
+    }
+
+    private void append(String playerName, Record record) {
+        long start = System.nanoTime();
+        try {
+            if (journal == null) {
+                openJournal();
+            }
+            journal.writeUTF(playerName);
+            journal.writeDouble(record.speedMs);
+            journal.writeUTF(record.unitId == null ? "" : record.unitId);
+            journal.writeDouble(record.averageSpeedMs);
+            journal.writeInt(record.durationTicks);
+            journal.writeBoolean(record.playerId != null);
+            if (record.playerId != null) {
+                journal.writeLong(record.playerId.getMostSignificantBits());
+                journal.writeLong(record.playerId.getLeastSignificantBits());
+            }
+            journal.flush();
+            journalEntries++;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, saveFailedMessage, e);
+        }
+        metrics.saves.increment();
+        metrics.record(PluginMetrics.PHASE_SAVE, start);
+    }
+
+    /**
+     * Пишет новый снимок из текущего снимка и изменений в памяти. Файл пишется без блокировки;
+     * под блокировкой только копируются изменения и подменяется снимок.
+     */
+    private void compact() {
+        if (compactionDisabled || (journalEntries == 0 && !migratingYaml)) {
+            return;
+        }
+        long start = System.nanoTime();
+        TopSpeedSnapshot base;
+        RankedIndexSet skip;
+        List<Map.Entry<String, Record>> changes = new ArrayList<>();
+        synchronized (this) {
+            base = snapshot;
+            skip = superseded.copy();
+            for (LeaderboardIndex.Entry entry : overlayIndex.page(0, overlayIndex.size())) {
+                changes.add(Map.entry(entry.playerName, overlay.get(entry.playerName)));
+            }
+        }
+
+        // Новое поколение пишется рядом с текущим снимком, который остаётся отображённым, пока его читают.
+        File next = new File(dataFolder, "topspeed." + (generation + 1) + ".bin");
+        File tmp = new File(dataFolder, next.getName() + ".tmp");
+        TopSpeedSnapshot written;
+        try {
+            TopSpeedSnapshot.write(tmp, base, skip, changes);
+            Files.move(tmp.toPath(), next.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = TopSpeedSnapshot.open(next);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, saveFailedMessage, e);
+            return;
+        }
+        generation++;
+        if (snapshotFile != null) {
+            staleSnapshots.add(snapshotFile);
+        }
+        snapshotFile = next;
+
+        synchronized (this) {
+            snapshot = written;
+            // Убираем из памяти только то, что не менялось, пока писался снимок.
+            for (Map.Entry<String, Record> change : changes) {
+                if (overlay.get(change.getKey()) == change.getValue()) {
+                    overlay.remove(change.getKey());
+                    overlayIndex.remove(change.getKey());
+                    overlayNames.remove(change.getKey());
+                }
+            }
+            superseded = new RankedIndexSet(snapshot.size());
+            for (String playerName : overlay.keySet()) {
+                int index = snapshot.indexOf(playerName);
+                if (index >= 0) {
+                    superseded.add(index);
+                }
+            }
+        }
+
+        // Всё, что было в журнале, уже попало в снимок: начинаем журнал заново.
+        closeJournal();
+        try {
+            Files.deleteIfExists(journalFile.toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось очистить журнал рекордов.", e);
+        }
+        journalEntries = 0;
+        deleteStaleSnapshots();
+        if (migratingYaml) {
+            migratingYaml = false;
+            File migrated = new File(legacyYamlFile.getParentFile(), legacyYamlFile.getName() + ".migrated");
+            try {
+                Files.move(legacyYamlFile.toPath(), migrated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Не удалось переименовать " + legacyYamlFile.getName() + " после переноса.", e);
+            }
+        }
+        metrics.record(PluginMetrics.PHASE_COMPACT, start);
+    }
+
+    /**
+     * Файлы снимков в папке, от самого нового поколения к старому.
+     */
+    private List<File> snapshotFiles() {
+        List<File> files = new ArrayList<>();
+        File[] candidates = dataFolder.listFiles();
+        if (candidates != null) {
+            for (File file : candidates) {
+                if (file.isFile() && SNAPSHOT_NAME.matcher(file.getName()).matches()) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(TopSpeedStore::generationOf).reversed());
+        return files;
+    }
+
+    private static long generationOf(File file) {
+        Matcher matcher = SNAPSHOT_NAME.matcher(file.getName());
+        if (!matcher.matches() || matcher.group(1) == null) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Убирает нечитаемый снимок с дороги, чтобы следующее сворачивание не посчитало его устаревшим
+     * и не удалило. Если переименовать не удалось, сворачивание отключается.
+     */
+    private void quarantine(File file, IOException error) {
+        File corrupt = new File(dataFolder, file.getName() + ".corrupt");
+        try {
+            Files.move(file.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.log(Level.SEVERE, "Снимок рекордов " + file.getName() + " не читается и переименован в "
+                    + corrupt.getName() + ", рекорды из него не загружены.", error);
+        } catch (IOException e) {
+            compactionDisabled = true;
+            logger.log(Level.SEVERE, "Снимок рекордов " + file.getName() + " не читается и не переименован: " + e.getMessage()
+                    + ". Новые рекорды пишутся только в журнал, пока файл не исправят или не уберут.", error);
+        }
+    }
+
+    private void quarantineJournal() {
+        File corrupt = new File(dataFolder, journalFile.getName() + ".corrupt");
+        try {
+            Files.move(journalFile.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.severe("Журнал рекордов не распознан и переименован в " + corrupt.getName() + ", записи из него не загружены.");
+        } catch (IOException e) {
+            // Сворачивание удалило бы журнал вместе с нераспознанными данными.
+            compactionDisabled = true;
+            logger.severe("Журнал рекордов не распознан и не переименован: " + e.getMessage()
+                    + ". Снимки рекордов не пишутся, пока файл не исправят или не уберут.");
+        }
+    }
+
+    private void deleteStaleSnapshots() {
+        staleSnapshots.removeIf(file -> {
+            try {
+                Files.deleteIfExists(file.toPath());
+                return true;
+            } catch (IOException e) {
+                // Файл ещё отображён в память; попробуем после следующего сворачивания.
+                return false;
+            }
+        });
+    }
+
+    private void openJournal() throws IOException {
+        boolean fresh = !journalFile.exists() || journalFile.length() == 0;
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        if (fresh) {
+            journal.writeInt(JOURNAL_MAGIC);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Не удалось закрыть журнал рекордов.", e);
+        }
+        journal = null;
+    }
+}
@@ -0,0 +1,69 @@
+package k0k0ska.speedhud;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Прежний YAML-формат рекордов (&lt;имя&gt;.speed_ms, &lt;имя&gt;.unit_id и т. д.).
+ * Используется для переноса старых данных и для выгрузки/загрузки администратором.
+ */
+final class TopSpeedYaml {
+
+    private TopSpeedYaml() {
+    }
+
+    static Map<String, TopSpeedStore.Record> read(File file) {
+        Map<String, TopSpeedStore.Record> records = new LinkedHashMap<>();
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file);
+        for (String playerName : yaml.getKeys(false)) {
+            if (!yaml.contains(playerName + ".speed_ms")) {
+                continue;
+            }
+            UUID playerId = null;
+            String uuid = yaml.getString(playerName + ".uuid");
+            if (uuid != null) {
+                try {
+                    playerId = UUID.fromString(uuid);
+                } catch (IllegalArgumentException ignored) {
+                    // Повреждённый UUID не мешает перенести рекорд.
+                }
+            }
+            records.put(playerName, new TopSpeedStore.Record(
+                    yaml.getDouble(playerName + ".speed_ms"),
+                    yaml.getString(playerName + ".unit_id"),
+                    yaml.getDouble(playerName + ".avg_speed_ms"),
+                    yaml.getInt(playerName + ".duration_ticks"),
+                    playerId));
+        }
+        return records;
+    }
+
+    /**
+     * Накопитель для выгрузки: записи добавляются по одной, файл пишется целиком в {@link #save(File)}.
+     */
+    static final class Writer {
+        private final YamlConfiguration yaml = new YamlConfiguration();
+        private int count;
+
+        void add(String playerName, TopSpeedStore.Record record) {
+            yaml.set(playerName + ".speed_ms", record.speedMs);
+            yaml.set(playerName + ".unit_id", record.unitId);
+            yaml.set(playerName + ".avg_speed_ms", record.averageSpeedMs);
+            yaml.set(playerName + ".duration_ticks", record.durationTicks);
+            if (record.playerId != null) {
+                yaml.set(playerName + ".uuid", record.playerId.toString());
+            }
+            count++;
+        }
+
+        int save(File file) throws IOException {
+            yaml.save(file);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package k0k0ska.speedhud.api;
+
+import java.util.UUID;
+
+/**
+ * Доступ к скорости игроков для других плагинов. Регистрируется в ServicesManager:
+ * <pre>
+ * SpeedHudApi api = Bukkit.getServicesManager().load(SpeedHudApi.class);
+ * </pre>
+ * Все методы можно вызывать из любого потока, чтение не блокирует и не выделяет память.
+ * Скорость известна только для замеряемых игроков: с включённым HUD
+ * или для всех, если в config.yml указано sampling.mode: all.
+ */
+public interface SpeedHudApi {
+
+    /**
+     * Последний опубликованный снимок скорости игрока или null, если об игроке ничего не известно.
+     * У незамеряемого игрока в снимке есть только личный рекорд, скорости равны 0.
+     */
+    SpeedSnapshot getSnapshot(UUID playerId);
+
+    /**
+     * Мгновенная скорость последнего замера в м/с, 0 - если неизвестна.
+     */
+    double getCurrentSpeed(UUID playerId);
+
+    /**
+     * Скользящее среднее за последнюю секунду в м/с, 0 - если неизвестно.
+     */
+    double getAverageSpeed(UUID playerId);
+
+    /**
+     * Личный рекорд игрока онлайн в м/с или {@link Double#NaN}, если рекорда нет или он ещё не загружен.
+     */
+    double getPersonalBest(UUID playerId);
+
+    /**
+     * Подписывает на пересечение порога сглаженной скоростью в обе стороны.
+     * Слушатель вызывается в потоке замеров и должен быстро возвращать управление;
+     * для работы с Bukkit API переходите в основной поток через планировщик.
+     */
+    Subscription subscribe(double thresholdMs, SpeedThresholdListener listener);
+}
@@ -0,0 +1,53 @@
+package k0k0ska.speedhud.api;
+
+import java.util.UUID;
+
+/**
+ * Неизменяемый снимок скорости игрока на момент замера. Скорости в м/с.
+ */
+public final class SpeedSnapshot {
+
+    private final UUID playerId;
+    private final double currentSpeed;
+    private final double averageSpeed;
+    private final double personalBest;
+    private final long tick;
+
+    public SpeedSnapshot(UUID playerId, double currentSpeed, double averageSpeed, double personalBest, long tick) {
+        this.playerId = playerId;
+        this.currentSpeed = currentSpeed;
+        this.averageSpeed = averageSpeed;
+        this.personalBest = personalBest;
+        this.tick = tick;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    public double getCurrentSpeed() {
+        return currentSpeed;
+    }
+
+    public double getAverageSpeed() {
+        return averageSpeed;
+    }
+
+    /**
+     * Личный рекорд или {@link Double#NaN}, если его нет.
+     */
+    public double getPersonalBest() {
+        return personalBest;
+    }
+
+    public boolean hasPersonalBest() {
+        return !Double.isNaN(personalBest);
+    }
+
+    /**
+     * Тик плагина, на котором сделан замер.
+     */
+    public long getTick() {
+        return tick;
+    }
+}
@@ -0,0 +1,10 @@
+package k0k0ska.speedhud.api;
+
+@FunctionalInterface
+public interface SpeedThresholdListener {
+
+    /**
+     * @param above true - сглаженная скорость поднялась до порога или выше, false - опустилась ниже
+     */
+    void onThresholdCrossed(SpeedSnapshot snapshot, double thresholdMs, boolean above);
+}
@@ -0,0 +1,6 @@
+package k0k0ska.speedhud.api;
+
+public interface Subscription {
+
+    void cancel();
+}